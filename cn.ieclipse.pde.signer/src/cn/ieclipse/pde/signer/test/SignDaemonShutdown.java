@@ -0,0 +1,124 @@
+/**
+ * 
+ */
+package cn.ieclipse.pde.signer.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.bouncycastle.asn1.x500.X500Name;
+
+import cn.ieclipse.pde.signer.util.KeyTool;
+import cn.ieclipse.pde.signer.util.SignDaemon;
+import cn.ieclipse.pde.signer.util.Signer;
+
+/**
+ * Asks a {@link SignDaemon} to shut down while it signs a large jar, the
+ * request must still be answered and the signed jar complete.
+ *
+ * @author Jamling
+ *         
+ */
+public class SignDaemonShutdown {
+    
+    /**
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "daemon-shutdown-" + System.nanoTime());
+        dir.mkdirs();
+        File input = new File(dir, "in.jar");
+        File output = new File(dir, "out.jar");
+        writeJar(input, 48);
+        
+        KeyTool tool = new KeyTool("storepass");
+        tool.genKeyPair("test", "keypass", new X500Name("CN=test"), 365);
+        X509Certificate publicKey = tool.getCertificate("test");
+        PrivateKey privateKey = tool.getPrivateKey("test", "keypass");
+        final SignDaemon daemon = new SignDaemon(new Signer.Builder(publicKey, privateKey).build(), 1);
+        int port = daemon.bind(0);
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    daemon.serve();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        server.start();
+        
+        Socket client = new Socket(InetAddress.getByName("127.0.0.1"), port);
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+        Writer out = new OutputStreamWriter(client.getOutputStream(), "UTF-8");
+        out.write(daemon.getToken() + "\n" + input.getAbsolutePath() + " -> " + output.getAbsolutePath() + "\n\n");
+        out.flush();
+        Thread.sleep(100);
+        check(!in.ready(), "the request is answered before the shutdown");
+        
+        Socket other = new Socket(InetAddress.getByName("127.0.0.1"), port);
+        Writer shutdown = new OutputStreamWriter(other.getOutputStream(), "UTF-8");
+        shutdown.write(daemon.getToken() + "\nshutdown\n");
+        shutdown.flush();
+        String end = new BufferedReader(new InputStreamReader(other.getInputStream(), "UTF-8")).readLine();
+        check("end".equals(end), "shutdown answered " + end);
+        other.close();
+        
+        server.join();
+        // The daemon has stopped, the answer must be there already.
+        check(in.ready(), "the daemon stopped before answering");
+        String result = in.readLine();
+        check(result != null && result.startsWith("signed\t"), "the request answered " + result);
+        check("end".equals(in.readLine()), "no end of the answer");
+        client.close();
+        
+        JarFile jar = new JarFile(output);
+        try {
+            check(jar.getEntry("META-INF/CERT.RSA") != null, "the signed jar is incomplete");
+        } finally {
+            jar.close();
+        }
+        input.delete();
+        output.delete();
+        dir.delete();
+        System.out.println("The request in flight was finished: " + result);
+    }
+    
+    private static void writeJar(File file, int megabytes) throws Exception {
+        Random random = new Random(0);
+        byte[] b = new byte[1 << 20];
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+        try {
+            for (int i = 0; i < megabytes; i++) {
+                JarEntry entry = new JarEntry("data/" + i + ".bin");
+                entry.setMethod(ZipEntry.DEFLATED);
+                out.putNextEntry(entry);
+                random.nextBytes(b);
+                out.write(b);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+    
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
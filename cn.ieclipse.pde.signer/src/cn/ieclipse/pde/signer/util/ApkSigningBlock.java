@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.pde.signer.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.ZipException;
+
+/**
+ * The APK Signing Block which holds the APK Signature Scheme v2 and v3
+ * signatures. It is inserted between the last entry and the central directory
+ * of an APK, its signatures cover the entries, the central directory and the
+ * end of central directory record, which are digested in chunks of 1 MB.
+ * The v4 signature, which covers the Merkle tree of the whole APK, is written
+ * apart.
+ *
+ * @author Jamling
+ *         
+ */
+final class ApkSigningBlock {
+    private static final int V2_ID = 0x7109871a;
+    private static final int V3_ID = 0xf05368c0;
+    private static final int STRIPPING_PROTECTION_ID = 0xbeeff00d;
+    private static final int RSA_PKCS1_SHA256 = 0x0103;
+    static final byte[] MAGIC = { 'A', 'P', 'K', ' ', 'S', 'i', 'g', ' ', 'B', 'l', 'o', 'c', 'k', ' ', '4',
+            '2' };
+    // The first release which verifies v3 signatures is Android 9.
+    private static final int V3_MIN_SDK = 28;
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int V4_VERSION = 2;
+    private static final int V4_HASH_SHA256 = 1;
+    
+    private ApkSigningBlock() {
+    }
+    
+    /**
+     * Get the content digest of an archive whose entries have been fed to
+     * <code>entries</code>, and whose central directory is about to be written
+     * by <code>zip</code>.
+     */
+    public static byte[] digest(ChunkDigester entries, RawZipOutputStream zip)
+            throws IOException, GeneralSecurityException {
+        if (zip.isZip64()) {
+            throw new ZipException("APK Signature Scheme v2 does not support ZIP64");
+        }
+        byte[] entriesDigests = entries.finish();
+        ChunkDigester cd = new ChunkDigester(null, 1);
+        zip.writeCentralDirectory(cd);
+        byte[] cdDigests = cd.finish();
+        // The end of central directory record is digested as if the central
+        // directory began where this block begins.
+        ChunkDigester eocd = new ChunkDigester(null, 1);
+        byte[] end = zip.getEndRecords(zip.getOffset());
+        eocd.write(end, 0, end.length);
+        byte[] eocdDigests = eocd.finish();
+        
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        int chunks = (entriesDigests.length + cdDigests.length + eocdDigests.length) / 32;
+        md.update((byte) 0x5a);
+        md.update(intBytes(chunks));
+        md.update(entriesDigests);
+        md.update(cdDigests);
+        md.update(eocdDigests);
+        return md.digest();
+    }
+    
+    /**
+     * Create the APK Signing Block, <code>digest</code> is what
+     * {@link #digest(ChunkDigester, RawZipOutputStream)} returned.
+     */
+    public static byte[] create(byte[] digest, X509Certificate publicKey, PrivateKey privateKey, boolean v2,
+            boolean v3) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream pairs = new ByteArrayOutputStream();
+        if (v2) {
+            byte[] attributes = lengthPrefixed(new byte[0]);
+            if (v3) {
+                // Tell v2 verifiers which know v3 that the v3 signature must
+                // not have been removed.
+                attributes = lengthPrefixed(lengthPrefixed(concat(intBytes(STRIPPING_PROTECTION_ID), intBytes(3))));
+            }
+            byte[] signedData = concat(digests(digest), certificates(publicKey), attributes);
+            writePair(pairs, V2_ID, lengthPrefixed(lengthPrefixed(signer(signedData, null, publicKey, privateKey))));
+        }
+        if (v3) {
+            byte[] sdk = concat(intBytes(V3_MIN_SDK), intBytes(Integer.MAX_VALUE));
+            byte[] signedData = concat(digests(digest), certificates(publicKey), sdk, lengthPrefixed(new byte[0]));
+            writePair(pairs, V3_ID, lengthPrefixed(lengthPrefixed(signer(signedData, sdk, publicKey, privateKey))));
+        }
+        
+        byte[] size = longBytes(pairs.size() + 8 + MAGIC.length);
+        return concat(size, pairs.toByteArray(), size, MAGIC);
+    }
+    
+    /**
+     * Write the APK Signature Scheme v4 signature of an APK, which is kept in a
+     * .idsig file next to it. <code>tree</code> has been fed with the whole
+     * APK, and <code>digest</code> is the content digest of its v2 or v3
+     * signature.
+     */
+    public static void writeV4Signature(OutputStream out, VerityTree tree, byte[] digest,
+            X509Certificate publicKey, PrivateKey privateKey) throws IOException, GeneralSecurityException {
+        byte[] salt = new byte[0];
+        byte[] additionalData = new byte[0];
+        byte[] certificate = publicKey.getEncoded();
+        byte[] hashingInfo = concat(intBytes(V4_HASH_SHA256), new byte[] { VerityTree.LOG2_BLOCK_SIZE },
+                lengthPrefixed(salt), lengthPrefixed(tree.getRootHash()));
+        byte[] signed = concat(longBytes(tree.getSize()), hashingInfo, lengthPrefixed(digest),
+                lengthPrefixed(certificate), lengthPrefixed(additionalData));
+        signed = concat(intBytes(4 + signed.length), signed);
+        byte[] signingInfo = concat(lengthPrefixed(digest), lengthPrefixed(certificate),
+                lengthPrefixed(additionalData), lengthPrefixed(publicKey.getPublicKey().getEncoded()),
+                intBytes(RSA_PKCS1_SHA256), lengthPrefixed(sign(signed, privateKey)));
+        out.write(intBytes(V4_VERSION));
+        out.write(lengthPrefixed(hashingInfo));
+        out.write(lengthPrefixed(signingInfo));
+        out.write(intBytes(tree.getTree().length));
+        out.write(tree.getTree());
+    }
+    
+    /**
+     * Get the .SF attribute which tells v1 verifiers which know the newer
+     * schemes that the APK was signed with them too.
+     */
+    public static String getSignedAttribute(boolean v2, boolean v3) {
+        return v2 && v3 ? "2, 3" : (v3 ? "3" : "2");
+    }
+    
+    private static byte[] signer(byte[] signedData, byte[] sdk, X509Certificate publicKey, PrivateKey privateKey)
+            throws GeneralSecurityException {
+        byte[] signatures = lengthPrefixed(
+                lengthPrefixed(concat(intBytes(RSA_PKCS1_SHA256), lengthPrefixed(sign(signedData, privateKey)))));
+        return concat(lengthPrefixed(signedData), sdk != null ? sdk : new byte[0], signatures,
+                lengthPrefixed(publicKey.getPublicKey().getEncoded()));
+    }
+    
+    private static byte[] sign(byte[] data, PrivateKey privateKey) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(privateKey);
+        signature.update(data);
+        return signature.sign();
+    }
+    
+    private static byte[] digests(byte[] digest) {
+        return lengthPrefixed(lengthPrefixed(concat(intBytes(RSA_PKCS1_SHA256), lengthPrefixed(digest))));
+    }
+    
+    private static byte[] certificates(X509Certificate publicKey) throws GeneralSecurityException {
+        return lengthPrefixed(lengthPrefixed(publicKey.getEncoded()));
+    }
+    
+    private static void writePair(ByteArrayOutputStream out, int id, byte[] value) throws IOException {
+        out.write(longBytes(4 + value.length));
+        out.write(intBytes(id));
+        out.write(value);
+    }
+    
+    private static byte[] lengthPrefixed(byte[] b) {
+        return concat(intBytes(b.length), b);
+    }
+    
+    private static byte[] concat(byte[]... arrays) {
+        int length = 0;
+        for (byte[] b : arrays) {
+            length += b.length;
+        }
+        byte[] result = new byte[length];
+        int pos = 0;
+        for (byte[] b : arrays) {
+            System.arraycopy(b, 0, result, pos, b.length);
+            pos += b.length;
+        }
+        return result;
+    }
+    
+    private static byte[] intBytes(int v) {
+        byte[] b = new byte[4];
+        RawZipOutputStream.putInt(b, 0, v);
+        return b;
+    }
+    
+    private static byte[] longBytes(long v) {
+        byte[] b = new byte[8];
+        RawZipOutputStream.putLong(b, 0, v);
+        return b;
+    }
+    
+    /**
+     * Digest a section of an APK in chunks of 1 MB with SHA-256.
+     */
+    static final class ChunkDigester extends SegmentDigester {
+        /**
+         * @param executor
+         *            the workers, or null to digest the chunks in the calling
+         *            thread
+         * @param threads
+         *            the number of workers
+         */
+        public ChunkDigester(ExecutorService executor, int threads) {
+            super(executor, threads, CHUNK_SIZE);
+        }
+        
+        @Override
+        protected byte[] digest(byte[] data, int length) throws Exception {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update((byte) 0xa5);
+            md.update(intBytes(length));
+            md.update(data, 0, length);
+            return md.digest();
+        }
+    }
+}
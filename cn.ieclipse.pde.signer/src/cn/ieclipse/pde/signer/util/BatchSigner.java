@@ -0,0 +1,297 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.pde.signer.util;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Signs many archives with one {@link Signer} on a bounded pool of workers.
+ * The largest archives are started first so the workers finish at about the
+ * same time, and a failure does not stop the other archives. Give it a signer
+ * whose parallelism is 1, the archives themselves are signed in parallel. Once
+ * the batch is canceled, the archives being signed are stopped and those not
+ * started yet are skipped.
+ *
+ * @author Jamling
+ *         
+ */
+public final class BatchSigner {
+    // How often the listener is asked whether the batch is canceled.
+    private static final long CANCEL_POLL_INTERVAL = 100;
+    
+    private final Signer signer;
+    private final int threads;
+    
+    /**
+     * @param signer
+     *            the key and the options
+     * @param threads
+     *            the number of archives signed at once, 0 for the number of
+     *            processors
+     */
+    public BatchSigner(Signer signer, int threads) {
+        this.signer = signer;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+    
+    /**
+     * Sign the archives and wait until they are all signed.
+     *
+     * @param items
+     *            the archives to sign
+     * @return the result of each item, in the order of the items
+     */
+    public List<Result> sign(List<Item> items) throws InterruptedException {
+        return sign(items, null);
+    }
+    
+    /**
+     * Sign the archives and wait until they are all signed, telling
+     * <code>listener</code> about each archive as soon as it is done.
+     *
+     * @param items
+     *            the archives to sign
+     * @param listener
+     *            the listener, or null
+     * @return the result of each item, in the order of the items
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting, the archives
+     *             being signed are canceled first, so no output is written any
+     *             more once this is thrown
+     */
+    public List<Result> sign(List<Item> items, Listener listener) throws InterruptedException {
+        if (items.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final Result[] results = new Result[items.size()];
+        final AtomicBoolean canceled = new AtomicBoolean();
+        Integer[] order = new Integer[items.size()];
+        final long[] lengths = new long[items.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            lengths[i] = items.get(i).getInput().length();
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer lhs, Integer rhs) {
+                long l = lengths[lhs];
+                long r = lengths[rhs];
+                return l < r ? 1 : (l > r ? -1 : lhs.compareTo(rhs));
+            }
+        });
+        
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, items.size()));
+        try {
+            CompletionService<Result> done = new ExecutorCompletionService<Result>(executor);
+            for (final Integer i : order) {
+                final Item item = items.get(i);
+                done.submit(new Callable<Result>() {
+                    public Result call() {
+                        if (canceled.get()) {
+                            results[i] = new Result(item, new CancellationException("canceled"), 0);
+                        }
+                        else {
+                            results[i] = sign(item, canceled);
+                        }
+                        return results[i];
+                    }
+                });
+            }
+            int k = 0;
+            while (k < order.length) {
+                Future<Result> future = done.poll(CANCEL_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (listener != null && !canceled.get() && listener.isCanceled()) {
+                    canceled.set(true);
+                }
+                if (future != null) {
+                    k++;
+                    if (listener != null) {
+                        listener.onSigned(future.get(), k, order.length);
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            // sign(Item) catches the exceptions, this is an error.
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            canceled.set(true);
+            executor.shutdownNow();
+            awaitTermination(executor);
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+        return Arrays.asList(results);
+    }
+    
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // The canceled archives are cleaned up all the same.
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private Result sign(Item item, final AtomicBoolean canceled) {
+        long start = System.currentTimeMillis();
+        Exception error = null;
+        try {
+            signer.sign(item.getInput(), item.getOutput(), new Signer.Progress() {
+                public void begin(Signer.Phase phase, long total) {
+                }
+                
+                public void update(long digested, long written) {
+                }
+                
+                public boolean isCanceled() {
+                    return canceled.get();
+                }
+            });
+        } catch (Exception e) {
+            error = e;
+        }
+        return new Result(item, error, System.currentTimeMillis() - start);
+    }
+    
+    /**
+     * Told about the archives as they are signed, in the thread which called
+     * {@link BatchSigner#sign(List, Listener)}.
+     */
+    public interface Listener {
+        /**
+         * @param result
+         *            the result of the archive
+         * @param done
+         *            the number of archives done so far, this one included
+         * @param total
+         *            the number of archives
+         */
+        void onSigned(Result result, int done, int total);
+        
+        /**
+         * Tell whether to stop the archives being signed and to skip those not
+         * started yet.
+         */
+        boolean isCanceled();
+    }
+    
+    /**
+     * An archive to sign.
+     */
+    public static final class Item {
+        private final File input;
+        private final File output;
+        
+        /**
+         * @param input
+         *            the archive to sign
+         * @param output
+         *            the signed archive, or null to replace the input
+         */
+        public Item(File input, File output) {
+            this.input = input;
+            this.output = output;
+        }
+        
+        public File getInput() {
+            return input;
+        }
+        
+        public File getOutput() {
+            return output;
+        }
+        
+        @Override
+        public String toString() {
+            return output == null ? input.toString() : input + " -> " + output;
+        }
+    }
+    
+    /**
+     * What became of an archive.
+     */
+    public static final class Result {
+        private final Item item;
+        private final Exception error;
+        private final long time;
+        
+        /**
+         * @param item
+         *            the archive
+         * @param error
+         *            why it was not signed, or null
+         * @param time
+         *            how long it took to sign, in milliseconds
+         */
+        public Result(Item item, Exception error, long time) {
+            this.item = item;
+            this.error = error;
+            this.time = time;
+        }
+        
+        public Item getItem() {
+            return item;
+        }
+        
+        public boolean isSuccess() {
+            return error == null;
+        }
+        
+        /** Tell whether the archive was not signed as the batch was canceled. */
+        public boolean isCanceled() {
+            return error instanceof CancellationException;
+        }
+        
+        /** Get why the archive was not signed, or null. */
+        public Exception getError() {
+            return error;
+        }
+        
+        /** Get how long the archive took to sign, in milliseconds. */
+        public long getTime() {
+            return time;
+        }
+        
+        @Override
+        public String toString() {
+            return item + (error == null ? " signed in " + time + " ms" : " failed: " + error);
+        }
+    }
+}
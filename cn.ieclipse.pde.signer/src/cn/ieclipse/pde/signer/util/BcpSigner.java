@@ -19,117 +19,339 @@ package cn.ieclipse.pde.signer.util;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintStream;
-import java.security.DigestOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.PrivateKey;
-import java.security.Provider;
-import java.security.Security;
-import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Enumeration;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 
-import org.bouncycastle.asn1.ASN1InputStream;
-import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Set;
 import org.bouncycastle.asn1.DEROutputStream;
+import org.bouncycastle.asn1.DERSet;
 import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
-import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.SignedData;
+import org.bouncycastle.asn1.cms.SignerInfo;
 import org.bouncycastle.cms.CMSException;
-import org.bouncycastle.cms.CMSProcessableByteArray;
-import org.bouncycastle.cms.CMSSignedData;
-import org.bouncycastle.cms.CMSSignedDataGenerator;
-import org.bouncycastle.cms.CMSTypedData;
-import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
-import org.bouncycastle.operator.ContentSigner;
-import org.bouncycastle.operator.OperatorCreationException;
-import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
-import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
-import org.bouncycastle.util.Arrays;
+import org.bouncycastle.cms.SignerInfoGenerator;
 import org.bouncycastle.util.encoders.Base64;
 
 /**
  * Command line tool to sign JAR files (including APKs and OTA updates) in a way
- * compatible with the mincrypt verifier, using SHA1 and RSA keys.
+ * compatible with the mincrypt verifier, using RSA keys. The whole file
+ * signature of OTA updates always uses SHA1.
  */
 public class BcpSigner {
     private static final String CERT_SF_NAME = "META-INF/CERT.SF";
     private static final String CERT_RSA_NAME = "META-INF/CERT.RSA";
     
     private static final String OTACERT_NAME = "META-INF/com/android/otacert";
-    private static final String CREATED = "1.0 (ieclipse.cn PCBSigner)";
-    private static final String CERT_SF_FORMAT = "META-INF/%s.SF";
-    private static final String CERT_RSA_FORMAT = "META-INF/%s.RSA";
+    static final String CREATED = "1.0 (ieclipse.cn PCBSigner)";
+    static final String CERT_SF_FORMAT = "META-INF/%s.SF";
+    static final String CERT_RSA_FORMAT = "META-INF/%s.RSA";
+    static final Pattern DEFAULT_STRIP_PATTERN = Pattern.compile("^META-INF/(.*)[.](SF|RSA|DSA)$");
     
-    private static Provider sBouncyCastleProvider;
+    // The options below are read by sign(), which creates a Signer with them
+    // for each call. Create a Signer to sign from several threads.
     
     // Files matching this pattern are not copied to the output.
-    public static Pattern stripPattern = Pattern.compile("^META-INF/(.*)[.](SF|RSA|DSA)$");
+    public static Pattern stripPattern = DEFAULT_STRIP_PATTERN;
     
-    /** Add the SHA1 of every file to the manifest, creating it if necessary. */
-    private static Manifest addDigestsToManifest(JarFile jar) throws IOException, GeneralSecurityException {
-        Manifest input = jar.getManifest();
-        Manifest output = new Manifest();
-        Attributes main = output.getMainAttributes();
-        if (input != null) {
-            main.putAll(input.getMainAttributes());
+    // Number of threads used to digest the entries before they are copied. 1
+    // digests each entry while it is copied, which reads the input only once.
+    public static int parallelism = 1;
+    
+    // Digests of the entries written to the manifest, a combination of the
+    // DigestSet algorithms computed in a single pass. The signature block uses
+    // the strongest of them. Add DigestSet.SHA1 for verifiers which only know
+    // SHA1.
+    public static int digestAlgorithms = DigestSet.SHA256;
+    
+    // Add the APK Signature Scheme v2 and/or v3 signatures to the JAR
+    // signature. An APK has no whole file signature, even when it is signed in
+    // place.
+    public static boolean apkSignatureV2 = false;
+    public static boolean apkSignatureV3 = false;
+    
+    // Align the data of the stored entries on this many bytes, 4 for APKs, and
+    // the stored shared libraries on 4096 bytes, so the APK needs no zipalign
+    // after signing. 0 disables the alignment.
+    public static int zipAlignment = 0;
+    
+    // Write the APK Signature Scheme v4 signature to <output>.idsig, for
+    // incremental installs. It needs the v2 or v3 signature. The Merkle tree
+    // is hashed while the APK is written.
+    public static boolean apkSignatureV4 = false;
+    
+    // Digests of the entries which have not changed since they were last
+    // signed, or null.
+    public static DigestCache digestCache;
+    
+    // Keep the manifest of the input and only write the signature files, see
+    // Signer.ManifestReuse. keepSignatures adds a signer instead of replacing
+    // the signers.
+    public static Signer.ManifestReuse manifestReuse = Signer.ManifestReuse.NONE;
+    public static boolean keepSignatures = false;
+    
+    /**
+     * Get the indexes of the entries to be signed. The entries of the archive
+     * are sorted by name, so the manifest is written in sorted order and is
+     * deterministic.
+     */
+    static int[] getSignEntries(ZipArchive zip, Pattern stripPattern) {
+        int[] entries = new int[zip.size()];
+        int count = 0;
+        for (int i = 0; i < zip.size(); i++) {
+            String name = zip.getName(i);
+            if (!zip.isDirectory(i) && !name.equals(JarFile.MANIFEST_NAME) && !name.equals(CERT_SF_NAME)
+                    && !name.equals(CERT_RSA_NAME) && !name.equals(OTACERT_NAME)
+                    && (stripPattern == null || !stripPattern.matcher(name).matches())) {
+                entries[count++] = i;
+            }
         }
-        else {
-            main.putValue("Manifest-Version", "1.0");
-            main.putValue("Created-By", CREATED);
+        return Arrays.copyOf(entries, count);
+    }
+    
+    /** Read the manifest of the archive, or null if there is none. */
+    static byte[] readManifest(ZipArchive zip) throws IOException {
+        int index = zip.indexOf(JarFile.MANIFEST_NAME);
+        for (int i = 0; index < 0 && i < zip.size(); i++) {
+            if (zip.getName(i).equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+                index = i;
+            }
         }
+        if (index < 0) {
+            return null;
+        }
+        InputStream in = zip.getInputStream(index);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(zip.getSize(index), 1 << 20));
+            byte[] buffer = new byte[8192];
+            int num;
+            while ((num = in.read(buffer)) > 0) {
+                out.write(buffer, 0, num);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Digest the entries with a fixed pool of workers, except the entries which
+     * are digested already. The entries are split into one batch per worker,
+     * the largest entries are assigned first to the batch with the fewest bytes
+     * so that the batches have about the same size. All the workers read the
+     * same mapped archive.
+     */
+    static void digestParallel(final ZipArchive zip, final EntryTable table, BitSet digested,
+            int parallelism, final ProgressTracker tracker) throws IOException, GeneralSecurityException {
+        Integer[] order = new Integer[table.size() - digested.cardinality()];
+        for (int i = 0, k = 0; k < order.length; i++) {
+            if (!digested.get(i)) {
+                order[k++] = i;
+            }
+        }
+        int count = Math.min(parallelism, order.length);
+        if (count == 0) {
+            return;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer lhs, Integer rhs) {
+                long l = zip.getSize(table.getIndex(lhs));
+                long r = zip.getSize(table.getIndex(rhs));
+                return l < r ? 1 : (l > r ? -1 : lhs.compareTo(rhs));
+            }
+        });
         
-        MessageDigest md = MessageDigest.getInstance("SHA1");
-        byte[] buffer = new byte[4096];
-        int num;
-        
-        // We sort the input entries by name, and add them to the
-        // output manifest in sorted order. We expect that the output
-        // map will be deterministic.
-        
-        TreeMap<String, JarEntry> byName = new TreeMap<String, JarEntry>();
+        long[] load = new long[count];
+        List<List<Integer>> slots = new ArrayList<List<Integer>>(count);
+        for (int i = 0; i < count; i++) {
+            slots.add(new ArrayList<Integer>());
+        }
+        for (Integer position : order) {
+            int min = 0;
+            for (int i = 1; i < count; i++) {
+                if (load[i] < load[min]) {
+                    min = i;
+                }
+            }
+            slots.get(min).add(position);
+            load[min] += zip.getSize(table.getIndex(position));
+        }
         
-        for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements();) {
-            JarEntry entry = e.nextElement();
-            byName.put(entry.getName(), entry);
+        final byte[] digests = table.getDigests();
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(count);
+            for (final List<Integer> slot : slots) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        EntryDigester digester = new EntryDigester(table.getAlgorithms(), tracker);
+                        try {
+                            for (Integer position : slot) {
+                                digester.copy(zip, table.getIndex(position), null, digests,
+                                        position * table.getDigestLength());
+                            }
+                            digester.flush();
+                        } finally {
+                            digester.end();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while digesting entries");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(String.valueOf(cause));
+        } finally {
+            executor.shutdownNow();
+            // The other workers may still read the mapped archive when one
+            // fails or the signing is canceled, it must not be unmapped before
+            // they stop.
+            awaitTermination(executor);
+        }
+    }
+    
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Compute the digests of entries from their raw data, and copy the raw data
+     * to an output at the same time if needed. Each thread needs its own
+     * digester. The raw bytes digested and written are counted for the tracker.
+     */
+    private static class EntryDigester {
+        private final DigestSet md;
+        private final ProgressTracker tracker;
+        private final Inflater inflater = new Inflater(true);
+        private final byte[] buffer = new byte[8192];
+        private final byte[] inflated = new byte[8192];
+        private long digestedBytes;
+        private long writtenBytes;
+        
+        public EntryDigester(int algorithms, ProgressTracker tracker) throws GeneralSecurityException {
+            md = new DigestSet(algorithms);
+            this.tracker = tracker;
         }
         
-        for (JarEntry entry : byName.values()) {
-            String name = entry.getName();
-            if (!entry.isDirectory() && !name.equals(JarFile.MANIFEST_NAME) && !name.equals(CERT_SF_NAME)
-                    && !name.equals(CERT_RSA_NAME) && !name.equals(OTACERT_NAME)
-                    && (stripPattern == null || !stripPattern.matcher(name).matches())) {
-                InputStream data = jar.getInputStream(entry);
-                while ((num = data.read(buffer)) > 0) {
-                    md.update(buffer, 0, num);
+        /**
+         * Copy the raw data of the entry to 'out' unless it is null, and store
+         * the digests of the entry in <code>digest</code> at
+         * <code>offset</code> unless it is null.
+         */
+        public void copy(ZipArchive zip, int index, OutputStream out, byte[] digest, int offset)
+                throws IOException {
+            int method = zip.getMethod(index);
+            if (digest != null && method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+                throw new ZipException("unsupported compression method " + method + " of " + zip.getName(index));
+            }
+            ByteBuffer data = zip.getRawData(index);
+            inflater.reset();
+            try {
+                while (data.hasRemaining()) {
+                    int num = Math.min(buffer.length, data.remaining());
+                    data.get(buffer, 0, num);
+                    if (out != null) {
+                        out.write(buffer, 0, num);
+                        writtenBytes += num;
+                    }
+                    if (digestedBytes + writtenBytes >= ProgressTracker.BATCH_SIZE) {
+                        flush();
+                    }
+                    if (digest == null) {
+                        continue;
+                    }
+                    digestedBytes += num;
+                    if (method == ZipEntry.STORED) {
+                        md.update(buffer, 0, num);
+                    }
+                    else {
+                        inflater.setInput(buffer, 0, num);
+                        inflate();
+                    }
                 }
-                
-                Attributes attr = null;
-                if (input != null)
-                    attr = input.getAttributes(name);
-                attr = attr != null ? new Attributes(attr) : new Attributes();
-                attr.putValue("SHA1-Digest", new String(Base64.encode(md.digest()), "ASCII"));
-                output.getEntries().put(name, attr);
+                if (digest != null && method == ZipEntry.DEFLATED && !inflater.finished()) {
+                    // The inflater may need a dummy byte in nowrap mode.
+                    inflater.setInput(new byte[1]);
+                    inflate();
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException("invalid compressed data of " + zip.getName(index) + ": " + e.getMessage());
+            }
+            if (digest != null) {
+                md.digest(digest, offset);
+            }
+        }
+        
+        private void inflate() throws DataFormatException {
+            int num;
+            while ((num = inflater.inflate(inflated)) > 0) {
+                md.update(inflated, 0, num);
             }
         }
         
-        return output;
+        /** Add the bytes counted so far to the tracker. */
+        public void flush() {
+            tracker.add(digestedBytes, writtenBytes);
+            digestedBytes = 0;
+            writtenBytes = 0;
+        }
+        
+        public void end() {
+            inflater.end();
+        }
     }
     
     /**
@@ -138,13 +360,11 @@ public class BcpSigner {
      * same cert can be extracted from the CERT.RSA file but this is much easier
      * to get at.)
      */
-    private static void addOtacert(JarOutputStream outputJar, File publicKeyFile, long timestamp, Manifest manifest)
-            throws IOException, GeneralSecurityException {
+    private static void addOtacert(RawZipOutputStream outputJar, File publicKeyFile, long timestamp,
+            Manifest manifest) throws IOException, GeneralSecurityException {
         MessageDigest md = MessageDigest.getInstance("SHA1");
         
-        JarEntry je = new JarEntry(OTACERT_NAME);
-        je.setTime(timestamp);
-        outputJar.putNextEntry(je);
+        outputJar.putNextEntry(OTACERT_NAME, timestamp);
         FileInputStream input = new FileInputStream(publicKeyFile);
         byte[] b = new byte[4096];
         int read;
@@ -187,39 +407,14 @@ public class BcpSigner {
         }
     }
     
-    /** Write a .SF file with a digest of the specified manifest. */
-    private static void writeSignatureFile(Manifest manifest, OutputStream out)
-            throws IOException, GeneralSecurityException {
-        Manifest sf = new Manifest();
-        Attributes main = sf.getMainAttributes();
-        main.putValue("Signature-Version", "1.0");
-        main.putValue("Created-By", CREATED);
-        
-        MessageDigest md = MessageDigest.getInstance("SHA1");
-        PrintStream print = new PrintStream(new DigestOutputStream(new ByteArrayOutputStream(), md), true, "UTF-8");
-        
-        // Digest of the entire manifest
-        manifest.write(print);
-        print.flush();
-        main.putValue("SHA1-Digest-Manifest", new String(Base64.encode(md.digest()), "ASCII"));
-        
-        Map<String, Attributes> entries = manifest.getEntries();
-        for (Map.Entry<String, Attributes> entry : entries.entrySet()) {
-            // Digest of the manifest stanza for this entry.
-            print.print("Name: " + entry.getKey() + "\r\n");
-            for (Map.Entry<Object, Object> att : entry.getValue().entrySet()) {
-                print.print(att.getKey() + ": " + att.getValue() + "\r\n");
-            }
-            print.print("\r\n");
-            print.flush();
-            
-            Attributes sfAttr = new Attributes();
-            sfAttr.putValue("SHA1-Digest", new String(Base64.encode(md.digest()), "ASCII"));
-            sf.getEntries().put(entry.getKey(), sfAttr);
-        }
-        
-        CountOutputStream cout = new CountOutputStream(out);
-        sf.write(cout);
+    /**
+     * Write the .SF file and feed the signer with it, so that the signature
+     * file is not buffered.
+     */
+    static void writeSignatureFile(EntryTable table, byte[] manifestDigest, OutputStream out,
+            SignerInfoGenerator signer, String apkSigned) throws IOException {
+        CountOutputStream cout = new CountOutputStream(new TeeOutputStream(out, signer.getCalculatingOutputStream()));
+        table.writeSignatureFile(cout, manifestDigest, CREATED, apkSigned);
         
         // A bug in the java.util.jar implementation of Android platforms
         // up to version 1.6 will cause a spurious IOException to be thrown
@@ -231,66 +426,131 @@ public class BcpSigner {
         }
     }
     
-    private static class CMSByteArraySlice implements CMSTypedData {
-        private final ASN1ObjectIdentifier type;
-        private final byte[] data;
-        private final int offset;
-        private final int length;
-        
-        public CMSByteArraySlice(byte[] data, int offset, int length) {
-            this.data = data;
-            this.offset = offset;
-            this.length = length;
-            this.type = new ASN1ObjectIdentifier(CMSObjectIdentifiers.data.getId());
-        }
+    /**
+     * Write to two streams.
+     */
+    static class TeeOutputStream extends FilterOutputStream {
+        private final OutputStream other;
         
-        public Object getContent() {
-            // throw new UnsupportedOperationException();
-            return Arrays.clone(this.data);
+        public TeeOutputStream(OutputStream out, OutputStream other) {
+            super(out);
+            this.other = other;
         }
         
-        public ASN1ObjectIdentifier getContentType() {
-            return type;
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
         }
         
-        public void write(OutputStream out) throws IOException {
-            out.write(data, offset, length);
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            other.write(b, off, len);
         }
     }
     
-    /** Sign data and write the digital signature to 'out'. */
-    private static void writeSignatureBlock(CMSTypedData data, X509Certificate publicKey, PrivateKey privateKey,
-            OutputStream out)
-                    throws IOException, CertificateEncodingException, OperatorCreationException, CMSException {
-        ArrayList<X509Certificate> certList = new ArrayList<X509Certificate>(1);
-        certList.add(publicKey);
-        JcaCertStore certs = new JcaCertStore(certList);
+    /**
+     * Write to another stream and feed a signer with everything but the last
+     * two bytes written so far. Once the whole zip file has been written, the
+     * bytes held back are the comment length of the EOCD, which are not
+     * covered by the whole file signature.
+     */
+    static class WholeFileOutputStream extends FilterOutputStream {
+        private final OutputStream signer;
+        private final byte[] tail = new byte[2];
+        private int tailLength;
         
-        CMSSignedDataGenerator gen = new CMSSignedDataGenerator();
-        ContentSigner sha1Signer = new JcaContentSignerBuilder("SHA1withRSA").setProvider(sBouncyCastleProvider)
-                .build(privateKey);
-        gen.addSignerInfoGenerator(new JcaSignerInfoGeneratorBuilder(
-                new JcaDigestCalculatorProviderBuilder().setProvider(sBouncyCastleProvider).build())
-                        .setDirectSignature(true).build(sha1Signer, publicKey));
-        gen.addCertificates(certs);
-        CMSSignedData sigData = gen.generate(data, false);
+        public WholeFileOutputStream(OutputStream out, OutputStream signer) {
+            super(out);
+            this.signer = signer;
+        }
         
-        ASN1InputStream asn1 = new ASN1InputStream(sigData.getEncoded());
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            int emit = tailLength + len - tail.length;
+            if (emit <= 0) {
+                System.arraycopy(b, off, tail, tailLength, len);
+                tailLength += len;
+                return;
+            }
+            int fromTail = Math.min(tailLength, emit);
+            signer.write(tail, 0, fromTail);
+            signer.write(b, off, emit - fromTail);
+            byte[] held = new byte[tail.length];
+            int k = 0;
+            for (int i = fromTail; i < tailLength; i++) {
+                held[k++] = tail[i];
+            }
+            for (int i = off + emit - fromTail; i < off + len; i++) {
+                held[k++] = b[i];
+            }
+            System.arraycopy(held, 0, tail, 0, tail.length);
+            tailLength = tail.length;
+        }
+    }
+    
+    /**
+     * Write the detached signature of the data already fed to the signer to
+     * 'out', the same way as CMSSignedDataGenerator does. 'certificates' is
+     * the set of the signer's certificate, which can be reused.
+     */
+    static void writeSignatureBlock(SignerInfoGenerator signer, ASN1Set certificates, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        SignerInfo signerInfo;
+        try {
+            signerInfo = signer.generate(CMSObjectIdentifiers.data);
+        } catch (CMSException e) {
+            throw new GeneralSecurityException(e.getMessage(), e);
+        }
+        SignedData signedData = new SignedData(new DERSet(signerInfo.getDigestAlgorithm()),
+                new ContentInfo(CMSObjectIdentifiers.data, null),
+                certificates, null, new DERSet(signerInfo));
         DEROutputStream dos = new DEROutputStream(out);
-        dos.writeObject(asn1.readObject());
+        dos.writeObject(new ContentInfo(CMSObjectIdentifiers.signedData, signedData));
     }
     
-    private static void signWholeOutputFile(byte[] zipData, OutputStream outputStream, X509Certificate publicKey,
-            PrivateKey privateKey)
-                    throws IOException, CertificateEncodingException, OperatorCreationException, CMSException {
-        // For a zip with no archive comment, the
-        // end-of-central-directory record will be 22 bytes long, so
-        // we expect to find the EOCD marker 22 bytes from the end.
-        if (zipData[zipData.length - 22] != 0x50 || zipData[zipData.length - 21] != 0x4b
-                || zipData[zipData.length - 20] != 0x05 || zipData[zipData.length - 19] != 0x06) {
-            throw new IllegalArgumentException("zip data already has an archive comment");
+    /**
+     * Append the whole file signature to the zip file as the archive comment.
+     * The signer has been fed with the zip data while it was written, so the
+     * file is only accessed at its end.
+     */
+    static void signWholeOutputFile(File zipFile, SignerInfoGenerator signer, ASN1Set certificates)
+            throws IOException, GeneralSecurityException {
+        RandomAccessFile raf = new RandomAccessFile(zipFile, "rw");
+        try {
+            FileChannel zip = raf.getChannel();
+            long length = zip.size();
+            ByteBuffer eocd = ByteBuffer.allocate(22);
+            if (length >= eocd.capacity()) {
+                readFully(zip, eocd, length - eocd.capacity());
+            }
+            // For a zip with no archive comment, the
+            // end-of-central-directory record will be 22 bytes long, so
+            // we expect to find the EOCD marker 22 bytes from the end.
+            if (eocd.get(0) != 0x50 || eocd.get(1) != 0x4b || eocd.get(2) != 0x05 || eocd.get(3) != 0x06) {
+                throw new IllegalArgumentException("zip data already has an archive comment");
+            }
+            
+            byte[] b = createWholeFileComment(signer, certificates);
+            int total_size = b.length;
+            byte[] size = new byte[] { (byte) (total_size & 0xff), (byte) ((total_size >> 8) & 0xff) };
+            
+            // Patch the comment length of the EOCD and append the comment.
+            writeFully(zip, ByteBuffer.wrap(size), length - 2);
+            writeFully(zip, ByteBuffer.wrap(b), length);
+        } finally {
+            raf.close();
         }
-        
+    }
+    
+    private static byte[] createWholeFileComment(SignerInfoGenerator signer, ASN1Set certificates)
+            throws IOException, GeneralSecurityException {
         ByteArrayOutputStream temp = new ByteArrayOutputStream();
         
         // put a readable message and a null char at the start of the
@@ -301,7 +561,7 @@ public class BcpSigner {
         temp.write(message);
         temp.write(0);
         
-        writeSignatureBlock(new CMSByteArraySlice(zipData, 0, zipData.length - 2), publicKey, privateKey, temp);
+        writeSignatureBlock(signer, certificates, temp);
         int total_size = temp.size() + 6;
         if (total_size > 0xffff) {
             throw new IllegalArgumentException("signature is too big for ZIP file comment");
@@ -335,148 +595,141 @@ public class BcpSigner {
             }
         }
         
-        outputStream.write(zipData, 0, zipData.length - 2);
-        outputStream.write(total_size & 0xff);
-        outputStream.write((total_size >> 8) & 0xff);
-        temp.writeTo(outputStream);
+        return b;
+    }
+    
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int num = channel.read(buffer, position);
+            if (num < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            position += num;
+        }
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
     }
     
     /**
-     * Copy all the files in a manifest from input to output. We set the
-     * modification times in the output to a fixed time, so as to reduce
-     * variation in the output file and make incremental OTAs more efficient.
+     * Copy all the entries from input to output. We set the modification times
+     * in the output to a fixed time, so as to reduce variation in the output
+     * file and make incremental OTAs more efficient. The compressed data of
+     * the entries is copied as is, it is only inflated to compute the digests
+     * of the entries which are not digested yet, so each entry is read only once.
      */
-    private static void copyFiles(Manifest manifest, JarFile in, JarOutputStream out, long timestamp)
-            throws IOException {
-        byte[] buffer = new byte[4096];
-        int num;
-        
-        Map<String, Attributes> entries = manifest.getEntries();
-        ArrayList<String> names = new ArrayList<String>(entries.keySet());
-        Collections.sort(names);
-        for (String name : names) {
-            JarEntry inEntry = in.getJarEntry(name);
-            JarEntry outEntry = null;
-            if (inEntry.getMethod() == JarEntry.STORED) {
-                // Preserve the STORED method of the input entry.
-                outEntry = new JarEntry(inEntry);
-            }
-            else {
-                // Create a new entry so that the compressed len is recomputed.
-                outEntry = new JarEntry(name);
+    static void copyFiles(EntryTable table, BitSet digested, ZipArchive in, RawZipOutputStream out,
+            long timestamp, ProgressTracker tracker) throws IOException, GeneralSecurityException {
+        EntryDigester digester = new EntryDigester(table.getAlgorithms(), tracker);
+        byte[] digests = table.getDigests();
+        try {
+            for (int i = 0; i < table.size(); i++) {
+                int index = table.getIndex(i);
+                out.putRawEntry(in.getName(index), in.getMethod(index), in.getCrc(index),
+                        in.getCompressedSize(index), in.getSize(index), timestamp);
+                digester.copy(in, index, out, digested.get(i) ? null : digests, i * table.getDigestLength());
             }
-            outEntry.setTime(timestamp);
-            out.putNextEntry(outEntry);
-            
-            InputStream data = in.getInputStream(inEntry);
-            while ((num = data.read(buffer)) > 0) {
-                out.write(buffer, 0, num);
+            digester.flush();
+        } finally {
+            digester.end();
+        }
+    }
+    
+    /**
+     * Get the digests of the entries which are in the cache, return which
+     * entries have been found. A cache which can't be read is not used.
+     */
+    static BitSet readCachedDigests(DigestCache cache, ZipArchive zip, EntryTable table) {
+        BitSet found = new BitSet(table.size());
+        if (cache == null) {
+            return found;
+        }
+        byte[] digests = table.getDigests();
+        try {
+            for (int i = 0; i < table.size(); i++) {
+                int index = table.getIndex(i);
+                if (cache.get(zip.getNameBytes(index), zip.getCrc(index), zip.getCompressedSize(index),
+                        zip.getSize(index), table.getAlgorithms(), digests, i * table.getDigestLength())) {
+                    found.set(i);
+                }
             }
-            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            found.clear();
         }
+        return found;
     }
     
     /**
-     * Sign jar.
-     * 
+     * Add the digests of the entries which were not in the cache to the cache.
+     * The archive is signed even if the cache can't be written.
+     */
+    static void writeCachedDigests(DigestCache cache, ZipArchive zip, EntryTable table, BitSet found) {
+        if (cache == null) {
+            return;
+        }
+        byte[] digests = table.getDigests();
+        for (int i = found.nextClearBit(0); i < table.size(); i = found.nextClearBit(i + 1)) {
+            int index = table.getIndex(i);
+            cache.put(zip.getNameBytes(index), zip.getCrc(index), zip.getCompressedSize(index), zip.getSize(index),
+                    table.getAlgorithms(), digests, i * table.getDigestLength());
+        }
+        try {
+            cache.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Get a builder of {@link Signer} with the options of this class.
+     */
+    public static Signer.Builder newBuilder(X509Certificate publicKey, PrivateKey privateKey, String certName) {
+        return new Signer.Builder(publicKey, privateKey).setCertName(certName).setStripPattern(stripPattern)
+                .setParallelism(parallelism).setDigestAlgorithms(digestAlgorithms).setApkSignatureV2(apkSignatureV2)
+                .setApkSignatureV3(apkSignatureV3).setApkSignatureV4(apkSignatureV4).setZipAlignment(zipAlignment)
+                .setDigestCache(digestCache).setManifestReuse(manifestReuse).setKeepSignatures(keepSignatures);
+    }
+    
+    /**
+     * Sign jar with the options of this class.
+     *
      * @param publicKey
      * @param privateKey
      * @param input
      * @param output
+     *            the signed jar, or empty to replace the input
      * @param certName
+     * @return null, or the error message
      */
     public static String sign(X509Certificate publicKey, PrivateKey privateKey, String input, String output,
             String certName) {
-            
-        String msg = null;
-        sBouncyCastleProvider = new BouncyCastleProvider();
-        Security.addProvider(sBouncyCastleProvider);
-        
         boolean replace = Utils.isEmpty(output) || output.equals(input);
-        
-        JarFile inputJar = null;
-        JarOutputStream outputJar = null;
-        FileOutputStream outputFile = null;
-        
+        System.out.println(String.format("input=%s,output=%s,cert=%s,replace=%b", input, output, certName, replace));
         try {
-            System.out
-                    .println(String.format("input=%s,output=%s,cert=%s,replace=%b", input, output, certName, replace));
-                    
-            // Assume the certificate is valid for at least an hour.
-            long timestamp = publicKey.getNotBefore().getTime() + 3600L * 1000;
-            inputJar = new JarFile(new File(input), false); // Don't
-                                                            // verify.
-            
-            OutputStream outputStream = null;
-            if (replace) {
-                outputStream = new ByteArrayOutputStream();
-            }
-            else {
-                outputStream = new FileOutputStream(output);
-            }
-            outputJar = new JarOutputStream(outputStream);
-            
-            // For signing .apks, use the maximum compression to make
-            // them as small as possible (since they live forever on
-            // the system partition). For OTA packages, use the
-            // default compression level, which is much much faster
-            // and produces output that is only a tiny bit larger
-            // (~0.1% on full OTA packages I tested).
-            if (!replace) {
-                outputJar.setLevel(9);
-            }
-            
-            JarEntry je;
-            
-            Manifest manifest = addDigestsToManifest(inputJar);
-            
-            // Everything else
-            copyFiles(manifest, inputJar, outputJar, timestamp);
-            
-            // MANIFEST.MF
-            je = new JarEntry(JarFile.MANIFEST_NAME);
-            je.setTime(timestamp);
-            outputJar.putNextEntry(je);
-            manifest.write(outputJar);
-            
-            // CERT.SF
-            je = new JarEntry(String.format(CERT_SF_FORMAT, certName));
-            je.setTime(timestamp);
-            outputJar.putNextEntry(je);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            writeSignatureFile(manifest, baos);
-            byte[] signedData = baos.toByteArray();
-            outputJar.write(signedData);
-            
-            // CERT.RSA
-            je = new JarEntry(String.format(CERT_RSA_FORMAT, certName));
-            je.setTime(timestamp);
-            outputJar.putNextEntry(je);
-            writeSignatureBlock(new CMSProcessableByteArray(signedData), publicKey, privateKey, outputJar);
-            
-            outputStream.flush();
-            outputJar.close();
-            outputJar = null;
-            
-            if (replace) {
-                outputFile = new FileOutputStream(input);
-                signWholeOutputFile(((ByteArrayOutputStream) outputStream).toByteArray(), outputFile, publicKey,
-                        privateKey);
-            }
+            Signer signer = newBuilder(publicKey, privateKey, certName).build();
+            signer.sign(new File(input), replace ? null : new File(output));
+            return null;
         } catch (Exception e) {
-            msg = e.toString();
             e.printStackTrace();
-        } finally {
-            try {
-                if (inputJar != null)
-                    inputJar.close();
-                if (outputFile != null)
-                    outputFile.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+            return e.toString();
+        }
+    }
+    
+    /**
+     * Move the source file over the target file. The source must be on the
+     * same file system, so that the rename does not copy the data.
+     */
+    static void replaceFile(File source, File target) throws IOException {
+        if (!source.renameTo(target)) {
+            // File.renameTo() can't replace an existing file on Windows.
+            if (!target.delete() || !source.renameTo(target)) {
+                throw new IOException(String.format("Can't rename %s to %s", source, target));
             }
         }
-        return msg;
     }
     
     public static void main(String[] args) throws Exception {
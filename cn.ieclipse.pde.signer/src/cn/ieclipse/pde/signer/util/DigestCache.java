@@ -0,0 +1,486 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.pde.signer.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of the digests of zip entries, so that the entries which
+ * have not changed since an archive was last signed are neither inflated nor
+ * digested again. An entry is known by its name, CRC, compressed size and
+ * size.
+ * <p>
+ * The cache file is a list of records which are only appended to. When the
+ * file grows over its size limit it is compacted, keeping the most recently
+ * used records. Several processes may share the cache file, they lock a file
+ * next to it while they read or write the cache. Use a single instance per
+ * file in a process.
+ *
+ * @author Jamling
+ *         
+ */
+public final class DigestCache {
+    private static final int MAGIC = 0x4a534443;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    // A record is its length, last use, checksum, crc, compressed size, size,
+    // digests and name length, followed by the name and the digests. The
+    // checksum covers what follows the crc.
+    private static final int STAMP_OFFSET = 4;
+    private static final int CHECKSUM_OFFSET = 8;
+    private static final int CRC_OFFSET = 12;
+    private static final int COMPRESSED_SIZE_OFFSET = 16;
+    private static final int SIZE_OFFSET = 24;
+    private static final int FLAGS_OFFSET = 32;
+    private static final int NAME_LENGTH_OFFSET = 33;
+    private static final int RECORD_HEADER_SIZE = 35;
+    // last use is in minutes, and only updated once in a while
+    private static final int TOUCH_INTERVAL = 60;
+    
+    private final File file;
+    private final File lockFile;
+    private final long maxSize;
+    
+    private boolean loaded;
+    private int generation = -1;
+    // the valid records read from the file
+    private byte[] data = new byte[HEADER_SIZE];
+    private ByteBuffer view = ByteBuffer.wrap(data);
+    private int length = HEADER_SIZE;
+    // open addressing table of record offsets, 0 is an empty slot
+    private int[] table = new int[64];
+    private int records;
+    
+    private final Buffer pending = new Buffer();
+    private int[] touched = new int[64];
+    private int touchedCount;
+    
+    /**
+     * @param file
+     *            the cache file
+     * @param maxSize
+     *            the size limit of the cache file in bytes
+     */
+    public DigestCache(File file, long maxSize) {
+        this.file = file.getAbsoluteFile();
+        this.lockFile = new File(this.file.getPath() + ".lock");
+        this.maxSize = Math.min(maxSize, Integer.MAX_VALUE);
+    }
+    
+    public File getFile() {
+        return file;
+    }
+    
+    /**
+     * Read the records added to the cache file by other processes.
+     */
+    public synchronized void load() throws IOException {
+        RandomAccessFile lock = openLock();
+        try {
+            FileLock l = lock.getChannel().lock(0, Long.MAX_VALUE, true);
+            try {
+                read();
+            } finally {
+                l.release();
+            }
+        } finally {
+            lock.close();
+        }
+    }
+    
+    /**
+     * Get the digests of an entry.
+     *
+     * @param digests
+     *            the {@link DigestSet} algorithms of the digests wanted
+     * @param out
+     *            where the digests are copied to, in the order of the
+     *            algorithms
+     * @return true if the cache has all the digests of the entry
+     */
+    public synchronized boolean get(byte[] name, long crc, long compressedSize, long size, int digests, byte[] out,
+            int offset) throws IOException {
+        if (!loaded) {
+            load();
+        }
+        int pos = find(name, (int) crc, compressedSize, size);
+        if (pos < 0 || (data[pos + FLAGS_OFFSET] & digests) != digests) {
+            return false;
+        }
+        int src = pos + RECORD_HEADER_SIZE + name.length;
+        for (int flag : DigestSet.getFlags(data[pos + FLAGS_OFFSET])) {
+            int length = DigestSet.getLength(flag);
+            if ((digests & flag) != 0) {
+                System.arraycopy(data, src, out, offset, length);
+                offset += length;
+            }
+            src += length;
+        }
+        touch(pos);
+        return true;
+    }
+    
+    /**
+     * Add the digests of an entry, they are written to the cache file by
+     * {@link #flush()}.
+     *
+     * @param digests
+     *            the {@link DigestSet} algorithms of the digests given
+     * @param in
+     *            the digests, in the order of the algorithms
+     */
+    public synchronized void put(byte[] name, long crc, long compressedSize, long size, int digests, byte[] in,
+            int offset) {
+        if (name.length > 0xffff) {
+            return;
+        }
+        int digestLength = DigestSet.getLength(digests);
+        byte[] b = new byte[RECORD_HEADER_SIZE + name.length + digestLength];
+        ByteBuffer record = ByteBuffer.wrap(b);
+        record.putInt(b.length);
+        record.putInt(now());
+        record.putInt(0);
+        record.putInt((int) crc);
+        record.putLong(compressedSize);
+        record.putLong(size);
+        record.put((byte) digests);
+        record.putShort((short) name.length);
+        record.put(name);
+        record.put(in, offset, digestLength);
+        record.putInt(CHECKSUM_OFFSET, checksum(b, 0, b.length));
+        pending.write(b, 0, b.length);
+    }
+    
+    /**
+     * Write the records added and the use of the records to the cache file.
+     */
+    public synchronized void flush() throws IOException {
+        if (pending.size() == 0 && touchedCount == 0) {
+            return;
+        }
+        RandomAccessFile lock = openLock();
+        try {
+            FileLock l = lock.getChannel().lock();
+            try {
+                read();
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    write(raf.getChannel());
+                } finally {
+                    raf.close();
+                }
+                if (length > maxSize) {
+                    compact();
+                }
+            } finally {
+                l.release();
+            }
+        } finally {
+            lock.close();
+        }
+    }
+    
+    private RandomAccessFile openLock() throws IOException {
+        File dir = lockFile.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        return new RandomAccessFile(lockFile, "rw");
+    }
+    
+    /**
+     * Read what has been appended to the file since it was last read, or the
+     * whole file if it has been compacted. The lock must be held.
+     */
+    private void read() throws IOException {
+        loaded = true;
+        if (!file.exists()) {
+            reset(-1);
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (size < HEADER_SIZE || channel.read(header, 0) < HEADER_SIZE || header.getInt(0) != MAGIC
+                    || header.getInt(4) != VERSION) {
+                reset(-1);
+                return;
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("digest cache too large: " + file);
+            }
+            int gen = header.getInt(8);
+            if (gen != generation || size < length) {
+                reset(gen);
+            }
+            if (size > length) {
+                ensureCapacity((int) size);
+                ByteBuffer b = ByteBuffer.wrap(data, length, (int) size - length);
+                while (b.hasRemaining()) {
+                    if (channel.read(b, b.position()) < 0) {
+                        break;
+                    }
+                }
+                index(b.position());
+            }
+        } finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Write the use of the records and append the new records, the file is
+     * created if it is not valid. The lock must be held.
+     */
+    private void write(FileChannel channel) throws IOException {
+        if (generation < 0) {
+            channel.truncate(0);
+            reset(0);
+            putHeader(data, generation);
+            writeFully(channel, ByteBuffer.wrap(data, 0, HEADER_SIZE), 0);
+        }
+        else if (channel.size() > length) {
+            // drop a record which was not completely written
+            channel.truncate(length);
+        }
+        
+        // The use of the records is written in runs, the records in between are
+        // written again as they are.
+        Arrays.sort(touched, 0, touchedCount);
+        for (int i = 0; i < touchedCount;) {
+            int start = touched[i];
+            int end = start + 8;
+            while (++i < touchedCount && touched[i] - end < 4096) {
+                end = touched[i] + 8;
+            }
+            writeFully(channel, ByteBuffer.wrap(data, start, end - start), start);
+        }
+        touchedCount = 0;
+        
+        int start = length;
+        ensureCapacity(length + pending.size());
+        System.arraycopy(pending.array(), 0, data, length, pending.size());
+        writeFully(channel, ByteBuffer.wrap(data, start, pending.size()), start);
+        index(start + pending.size());
+        pending.reset();
+    }
+    
+    /**
+     * Rewrite the file with the most recently used records, down to three
+     * quarters of the size limit.
+     */
+    private void compact() throws IOException {
+        Integer[] live = new Integer[records];
+        int n = 0;
+        for (int pos : table) {
+            if (pos != 0) {
+                live[n++] = pos;
+            }
+        }
+        Arrays.sort(live, new Comparator<Integer>() {
+            public int compare(Integer lhs, Integer rhs) {
+                int l = view.getInt(lhs + STAMP_OFFSET);
+                int r = view.getInt(rhs + STAMP_OFFSET);
+                return l < r ? 1 : (l > r ? -1 : lhs.compareTo(rhs));
+            }
+        });
+        long budget = maxSize * 3 / 4;
+        Buffer out = new Buffer();
+        byte[] header = new byte[HEADER_SIZE];
+        putHeader(header, generation + 1);
+        out.write(header, 0, HEADER_SIZE);
+        for (Integer pos : live) {
+            int len = view.getInt(pos);
+            if (out.size() + len > budget) {
+                break;
+            }
+            out.write(data, pos, len);
+        }
+        
+        File temp = File.createTempFile(file.getName() + ".", ".tmp", file.getParentFile());
+        try {
+            RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+            try {
+                writeFully(raf.getChannel(), ByteBuffer.wrap(out.array(), 0, out.size()), 0);
+            } finally {
+                raf.close();
+            }
+            if (!temp.renameTo(file)) {
+                // File.renameTo() can't replace an existing file on Windows.
+                if (!file.delete() || !temp.renameTo(file)) {
+                    throw new IOException(String.format("Can't rename %s to %s", temp, file));
+                }
+            }
+            temp = null;
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+        
+        reset(generation + 1);
+        ensureCapacity(out.size());
+        System.arraycopy(out.array(), 0, data, 0, out.size());
+        index(out.size());
+    }
+    
+    private void reset(int gen) {
+        generation = gen;
+        length = HEADER_SIZE;
+        Arrays.fill(table, 0);
+        records = 0;
+        touchedCount = 0;
+    }
+    
+    private void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            data = Arrays.copyOf(data, Math.max(capacity, data.length + (data.length >> 1)));
+            view = ByteBuffer.wrap(data);
+        }
+    }
+    
+    /**
+     * Add the valid records from the end of the records read so far.
+     */
+    private void index(int end) {
+        int pos = length;
+        while (pos + RECORD_HEADER_SIZE <= end) {
+            int len = view.getInt(pos);
+            if (len < RECORD_HEADER_SIZE || len > end - pos
+                    || view.getInt(pos + CHECKSUM_OFFSET) != checksum(data, pos, len)) {
+                break;
+            }
+            int nameLength = view.getShort(pos + NAME_LENGTH_OFFSET) & 0xffff;
+            if (len != RECORD_HEADER_SIZE + nameLength + DigestSet.getLength(data[pos + FLAGS_OFFSET])) {
+                break;
+            }
+            add(pos);
+            pos += len;
+        }
+        length = pos;
+    }
+    
+    private void add(int pos) {
+        if ((records + 1) * 2 > table.length) {
+            int[] old = table;
+            table = new int[old.length * 2];
+            records = 0;
+            for (int p : old) {
+                if (p != 0) {
+                    add(p);
+                }
+            }
+        }
+        int nameLength = view.getShort(pos + NAME_LENGTH_OFFSET) & 0xffff;
+        int crc = view.getInt(pos + CRC_OFFSET);
+        long compressedSize = view.getLong(pos + COMPRESSED_SIZE_OFFSET);
+        long size = view.getLong(pos + SIZE_OFFSET);
+        int mask = table.length - 1;
+        int slot = hash(data, pos + RECORD_HEADER_SIZE, nameLength, crc, compressedSize, size) & mask;
+        while (table[slot] != 0) {
+            if (sameKey(table[slot], data, pos + RECORD_HEADER_SIZE, nameLength, crc, compressedSize, size)) {
+                // the last record of an entry wins
+                table[slot] = pos;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = pos;
+        records++;
+    }
+    
+    private int find(byte[] name, int crc, long compressedSize, long size) {
+        int mask = table.length - 1;
+        int slot = hash(name, 0, name.length, crc, compressedSize, size) & mask;
+        while (table[slot] != 0) {
+            if (sameKey(table[slot], name, 0, name.length, crc, compressedSize, size)) {
+                return table[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+    
+    private boolean sameKey(int pos, byte[] name, int off, int len, int crc, long compressedSize, long size) {
+        return view.getInt(pos + CRC_OFFSET) == crc && view.getLong(pos + COMPRESSED_SIZE_OFFSET) == compressedSize
+                && view.getLong(pos + SIZE_OFFSET) == size && (view.getShort(pos + NAME_LENGTH_OFFSET) & 0xffff) == len
+                && ZipArchive.compare(data, pos + RECORD_HEADER_SIZE, pos + RECORD_HEADER_SIZE + len, name, off,
+                        off + len) == 0;
+    }
+    
+    private void touch(int pos) {
+        int now = now();
+        if (now - view.getInt(pos + STAMP_OFFSET) < TOUCH_INTERVAL) {
+            return;
+        }
+        view.putInt(pos + STAMP_OFFSET, now);
+        if (touchedCount == touched.length) {
+            touched = Arrays.copyOf(touched, touchedCount * 2);
+        }
+        touched[touchedCount++] = pos;
+    }
+    
+    private static int hash(byte[] name, int off, int len, int crc, long compressedSize, long size) {
+        int h = crc;
+        for (int i = off; i < off + len; i++) {
+            h = 31 * h + name[i];
+        }
+        h = 31 * h + (int) (compressedSize ^ (compressedSize >>> 32));
+        h = 31 * h + (int) (size ^ (size >>> 32));
+        return h ^ (h >>> 16);
+    }
+    
+    private static int checksum(byte[] b, int pos, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(b, pos + CRC_OFFSET, len - CRC_OFFSET);
+        return (int) crc.getValue();
+    }
+    
+    private static int now() {
+        return (int) (System.currentTimeMillis() / 60000);
+    }
+    
+    private static void putHeader(byte[] b, int generation) {
+        ByteBuffer header = ByteBuffer.wrap(b);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(generation);
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+    
+    /** A byte array output stream whose array can be used directly. */
+    private static final class Buffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.pde.signer.util;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Several message digests fed with the same data, so that the data is read
+ * once whatever the number of digests. A set of algorithms is a combination of
+ * the flags {@link #SHA1}, {@link #SHA256} and {@link #SHA512}; the digests of
+ * a set are always laid out in the order of the flags.
+ *
+ * @author Jamling
+ *         
+ */
+public final class DigestSet {
+    public static final int SHA1 = 1;
+    public static final int SHA256 = 2;
+    public static final int SHA512 = 4;
+    
+    private static final int[] FLAGS = { SHA1, SHA256, SHA512 };
+    private static final String[] NAMES = { "SHA1", "SHA-256", "SHA-512" };
+    private static final int[] LENGTHS = { 20, 32, 64 };
+    
+    private final int algorithms;
+    private final MessageDigest[] digests;
+    
+    public DigestSet(int algorithms) throws NoSuchAlgorithmException {
+        this.algorithms = algorithms;
+        this.digests = new MessageDigest[Integer.bitCount(algorithms & (SHA1 | SHA256 | SHA512))];
+        if (digests.length == 0) {
+            throw new NoSuchAlgorithmException("no digest algorithm: " + algorithms);
+        }
+        int k = 0;
+        for (int i = 0; i < FLAGS.length; i++) {
+            if ((algorithms & FLAGS[i]) != 0) {
+                digests[k++] = MessageDigest.getInstance(NAMES[i]);
+            }
+        }
+    }
+    
+    public int getAlgorithms() {
+        return algorithms;
+    }
+    
+    public void update(byte[] b, int off, int len) {
+        for (MessageDigest md : digests) {
+            md.update(b, off, len);
+        }
+    }
+    
+    /**
+     * Store the digests at <code>offset</code> in <code>out</code>, which
+     * needs {@link #getLength(int)} bytes, and reset them.
+     */
+    public void digest(byte[] out, int offset) {
+        try {
+            for (MessageDigest md : digests) {
+                offset += md.digest(out, offset, md.getDigestLength());
+            }
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Get the total length of the digests of a set of algorithms.
+     */
+    public static int getLength(int algorithms) {
+        int length = 0;
+        for (int i = 0; i < FLAGS.length; i++) {
+            if ((algorithms & FLAGS[i]) != 0) {
+                length += LENGTHS[i];
+            }
+        }
+        return length;
+    }
+    
+    /**
+     * Get the flags of a set of algorithms, in the order of their digests.
+     */
+    public static int[] getFlags(int algorithms) {
+        int[] flags = new int[Integer.bitCount(algorithms & (SHA1 | SHA256 | SHA512))];
+        int k = 0;
+        for (int flag : FLAGS) {
+            if ((algorithms & flag) != 0) {
+                flags[k++] = flag;
+            }
+        }
+        return flags;
+    }
+    
+    /**
+     * Get the name of the algorithm of a single flag, as used in the digest
+     * attributes of manifests, e.g. "SHA-256" for "SHA-256-Digest".
+     */
+    public static String getName(int flag) {
+        return NAMES[index(flag)];
+    }
+    
+    /**
+     * Get the RSA signature algorithm which goes with the strongest digest of
+     * a set.
+     */
+    public static String getSignatureAlgorithm(int algorithms) {
+        if ((algorithms & SHA512) != 0) {
+            return "SHA512withRSA";
+        }
+        if ((algorithms & SHA256) != 0) {
+            return "SHA256withRSA";
+        }
+        return "SHA1withRSA";
+    }
+    
+    private static int index(int flag) {
+        for (int i = 0; i < FLAGS.length; i++) {
+            if (FLAGS[i] == flag) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("not a single digest algorithm: " + flag);
+    }
+}
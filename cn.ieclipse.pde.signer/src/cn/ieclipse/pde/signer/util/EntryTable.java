@@ -0,0 +1,430 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.pde.signer.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.ZipException;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.bouncycastle.util.encoders.DecoderException;
+
+/**
+ * The entries of an archive to be signed and their digests. The digests of a
+ * {@link DigestSet} are kept in a single array, and the MANIFEST.MF and the .SF
+ * file are written from the table section by section, so no object is held per
+ * entry. A {@link Manifest} is only built by {@link #toManifest()}.
+ *
+ * @author Jamling
+ *         
+ */
+final class EntryTable {
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] CONTINUATION = { '\r', '\n', ' ' };
+    
+    private final ZipArchive zip;
+    private final int[] entries;
+    private final int algorithms;
+    private final int digestLength;
+    private final byte[] digests;
+    private final byte[] sectionDigests;
+    private final Attributes mainAttributes;
+    // The input manifest, and where the section of each entry, and its
+    // attributes after the name, are in it.
+    private byte[] input;
+    private int[] nameStarts;
+    private int[] sectionStarts;
+    private int[] sectionEnds;
+    
+    /**
+     * @param zip
+     *            the archive
+     * @param entries
+     *            indexes of the entries to be signed, in ascending order
+     * @param algorithms
+     *            the {@link DigestSet} algorithms of the digests
+     * @param manifest
+     *            the content of the input manifest, or null
+     * @param createdBy
+     *            the Created-By of a new manifest
+     */
+    public EntryTable(ZipArchive zip, int[] entries, int algorithms, byte[] manifest, String createdBy)
+            throws IOException {
+        this.zip = zip;
+        this.entries = entries;
+        this.algorithms = algorithms;
+        this.digestLength = DigestSet.getLength(algorithms);
+        this.digests = new byte[entries.length * digestLength];
+        this.sectionDigests = new byte[entries.length * digestLength];
+        if (manifest == null) {
+            mainAttributes = new Attributes();
+            mainAttributes.putValue("Manifest-Version", "1.0");
+            mainAttributes.putValue("Created-By", createdBy);
+        }
+        else {
+            input = manifest;
+            int mainEnd = nextSection(manifest, 0);
+            mainAttributes = new Manifest(new ByteArrayInputStream(manifest, 0, mainEnd)).getMainAttributes();
+            readSections(manifest, mainEnd);
+        }
+    }
+    
+    public int size() {
+        return entries.length;
+    }
+    
+    /** Get the index in the archive of the i-th entry. */
+    public int getIndex(int i) {
+        return entries[i];
+    }
+    
+    public String getName(int i) {
+        return zip.getName(entries[i]);
+    }
+    
+    public int getAlgorithms() {
+        return algorithms;
+    }
+    
+    /**
+     * Get the length of the digests of an entry.
+     */
+    public int getDigestLength() {
+        return digestLength;
+    }
+    
+    /**
+     * Get the array holding the digests, the digests of the i-th entry are at
+     * <code>i * getDigestLength()</code>.
+     */
+    byte[] getDigests() {
+        return digests;
+    }
+    
+    /**
+     * Write the MANIFEST.MF, the attributes of the input manifest are kept
+     * and the digests of every entry are added. Return the digests of the
+     * whole manifest.
+     */
+    public byte[] writeManifest(OutputStream out) throws IOException, GeneralSecurityException {
+        DigestSet whole = new DigestSet(algorithms);
+        DigestSet md = new DigestSet(algorithms);
+        Buffer section = new Buffer();
+        Manifest main = new Manifest();
+        main.getMainAttributes().putAll(mainAttributes);
+        main.write(section);
+        whole.update(section.array(), 0, section.size());
+        out.write(section.array(), 0, section.size());
+        
+        for (int i = 0; i < entries.length; i++) {
+            section.reset();
+            writeName(section, getName(i));
+            if (sectionStarts != null && sectionEnds[i] > 0) {
+                copyAttributes(section, sectionStarts[i], sectionEnds[i]);
+            }
+            writeDigest(section, digests, i);
+            section.write(CRLF, 0, CRLF.length);
+            md.update(section.array(), 0, section.size());
+            md.digest(sectionDigests, i * digestLength);
+            whole.update(section.array(), 0, section.size());
+            out.write(section.array(), 0, section.size());
+        }
+        byte[] digest = new byte[digestLength];
+        whole.digest(digest, 0);
+        return digest;
+    }
+    
+    /**
+     * Use the input manifest as it is instead of writing a new one: read the
+     * digests of the entries from it, and digest its sections for the .SF
+     * file. Return the digests of the whole manifest.
+     *
+     * @param manifestDigests
+     *            receives the digests of the entries, laid out like
+     *            {@link #getDigests()}
+     * @throws ZipException
+     *             if the manifest lacks a digest of an entry
+     */
+    public byte[] readManifest(byte[] manifestDigests) throws IOException, GeneralSecurityException {
+        if (input == null) {
+            throw new ZipException("no manifest");
+        }
+        DigestSet md = new DigestSet(algorithms);
+        for (int i = 0; i < entries.length; i++) {
+            if (sectionStarts == null || sectionEnds[i] == 0) {
+                throw new ZipException("no manifest section of " + getName(i));
+            }
+            int offset = i * digestLength;
+            for (int flag : DigestSet.getFlags(algorithms)) {
+                int length = DigestSet.getLength(flag);
+                byte[] digest = readAttribute(sectionStarts[i], sectionEnds[i], DigestSet.getName(flag) + "-Digest");
+                if (digest != null) {
+                    try {
+                        digest = Base64.decode(digest);
+                    } catch (DecoderException e) {
+                        digest = null;
+                    }
+                }
+                if (digest == null || digest.length != length) {
+                    throw new ZipException(String.format("no %s digest of %s in the manifest", DigestSet.getName(flag),
+                            getName(i)));
+                }
+                System.arraycopy(digest, 0, manifestDigests, offset, length);
+                offset += length;
+            }
+            // A section is digested with the blank line which ends it.
+            md.update(input, nameStarts[i], nextLine(input, sectionEnds[i]) - nameStarts[i]);
+            md.digest(sectionDigests, i * digestLength);
+        }
+        DigestSet whole = new DigestSet(algorithms);
+        whole.update(input, 0, input.length);
+        byte[] digest = new byte[digestLength];
+        whole.digest(digest, 0);
+        return digest;
+    }
+    
+    /**
+     * Write the .SF file, <code>manifestDigest</code> is what
+     * {@link #writeManifest(OutputStream)} or {@link #readManifest(byte[])}
+     * returned. <code>apkSigned</code>
+     * is the X-Android-APK-Signed attribute, or null.
+     */
+    public void writeSignatureFile(OutputStream out, byte[] manifestDigest, String createdBy, String apkSigned)
+            throws IOException {
+        Manifest sf = new Manifest();
+        Attributes main = sf.getMainAttributes();
+        main.putValue("Signature-Version", "1.0");
+        main.putValue("Created-By", createdBy);
+        if (apkSigned != null) {
+            main.putValue("X-Android-APK-Signed", apkSigned);
+        }
+        int offset = 0;
+        for (int flag : DigestSet.getFlags(algorithms)) {
+            int length = DigestSet.getLength(flag);
+            main.putValue(DigestSet.getName(flag) + "-Digest-Manifest",
+                    toBase64(manifestDigest, offset, length));
+            offset += length;
+        }
+        sf.write(out);
+        
+        Buffer section = new Buffer();
+        for (int i = 0; i < entries.length; i++) {
+            section.reset();
+            writeName(section, getName(i));
+            writeDigest(section, sectionDigests, i);
+            section.write(CRLF, 0, CRLF.length);
+            out.write(section.array(), 0, section.size());
+        }
+    }
+    
+    /** Build the manifest which {@link #writeManifest(OutputStream)} writes. */
+    public Manifest toManifest() throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeManifest(out);
+        return new Manifest(new ByteArrayInputStream(out.toByteArray()));
+    }
+    
+    private static void writeName(Buffer out, String name) {
+        writeLine(out, "Name: " + name);
+    }
+    
+    private static void writeLine(Buffer out, String s) {
+        byte[] line = ZipArchive.getBytes(s);
+        // Lines are at most 72 bytes, without splitting a character.
+        int pos = 0;
+        int limit = 72;
+        while (line.length - pos > limit) {
+            int end = pos + limit;
+            while ((line[end] & 0xc0) == 0x80) {
+                end--;
+            }
+            out.write(line, pos, end - pos);
+            out.write(CONTINUATION, 0, CONTINUATION.length);
+            pos = end;
+            limit = 71;
+        }
+        out.write(line, pos, line.length - pos);
+        out.write(CRLF, 0, CRLF.length);
+    }
+    
+    private void writeDigest(Buffer out, byte[] digests, int i) {
+        int offset = i * digestLength;
+        for (int flag : DigestSet.getFlags(algorithms)) {
+            int length = DigestSet.getLength(flag);
+            writeLine(out, DigestSet.getName(flag) + "-Digest: " + toBase64(digests, offset, length));
+            offset += length;
+        }
+    }
+    
+    private static String toBase64(byte[] b, int off, int len) {
+        byte[] encoded = Base64.encode(b, off, len);
+        return ZipArchive.toString(encoded, 0, encoded.length);
+    }
+    
+    /**
+     * Copy the lines of an input section but the digests, which are written
+     * again, with CRLF line endings.
+     */
+    private void copyAttributes(Buffer out, int start, int end) {
+        boolean skip = false;
+        int pos = start;
+        while (pos < end) {
+            int eol = lineEnd(input, pos, end);
+            if (input[pos] != ' ') {
+                skip = isDigest(input, pos, eol);
+            }
+            if (!skip) {
+                out.write(input, pos, eol - pos);
+                out.write(CRLF, 0, CRLF.length);
+            }
+            pos = nextLine(input, eol);
+        }
+    }
+    
+    /**
+     * Get the value of an attribute of an input section, with its
+     * continuation lines, or null.
+     */
+    private byte[] readAttribute(int start, int end, String name) {
+        int pos = start;
+        while (pos < end) {
+            int eol = lineEnd(input, pos, end);
+            int next = nextLine(input, eol);
+            int colon = pos + name.length();
+            if (colon < eol && input[colon] == ':' && startsWithIgnoreCase(input, pos, colon, name)) {
+                ByteArrayOutputStream value = new ByteArrayOutputStream();
+                value.write(input, colon + 1, eol - colon - 1);
+                while (next < end && input[next] == ' ') {
+                    eol = lineEnd(input, next, end);
+                    value.write(input, next + 1, eol - next - 1);
+                    next = nextLine(input, eol);
+                }
+                return ZipArchive.getBytes(ZipArchive.toString(value.toByteArray(), 0, value.size()).trim());
+            }
+            pos = next;
+        }
+        return null;
+    }
+    
+    /**
+     * Find the attributes of the entries in the sections of the input
+     * manifest.
+     */
+    private void readSections(byte[] b, int pos) {
+        while (pos < b.length) {
+            int eol = lineEnd(b, pos, b.length);
+            if (eol == pos) {
+                pos = nextLine(b, eol);
+                continue;
+            }
+            int sectionEnd = nextSection(b, pos);
+            if (startsWithIgnoreCase(b, pos, eol, "Name: ")) {
+                int nameStart = pos;
+                ByteArrayOutputStream name = new ByteArrayOutputStream();
+                name.write(b, pos + 6, eol - pos - 6);
+                pos = nextLine(b, eol);
+                while (pos < sectionEnd && b[pos] == ' ') {
+                    eol = lineEnd(b, pos, sectionEnd);
+                    name.write(b, pos + 1, eol - pos - 1);
+                    pos = nextLine(b, eol);
+                }
+                int index = zip.indexOf(ZipArchive.toString(name.toByteArray(), 0, name.size()));
+                int i = index < 0 ? -1 : Arrays.binarySearch(entries, index);
+                if (i >= 0) {
+                    if (sectionStarts == null) {
+                        nameStarts = new int[entries.length];
+                        sectionStarts = new int[entries.length];
+                        sectionEnds = new int[entries.length];
+                    }
+                    nameStarts[i] = nameStart;
+                    sectionStarts[i] = pos;
+                    sectionEnds[i] = sectionEnd;
+                }
+            }
+            pos = sectionEnd;
+        }
+    }
+    
+    /** Get the end of the section which starts at pos, before its blank line. */
+    private static int nextSection(byte[] b, int pos) {
+        while (pos < b.length) {
+            int eol = lineEnd(b, pos, b.length);
+            if (eol == pos) {
+                return pos;
+            }
+            pos = nextLine(b, eol);
+        }
+        return b.length;
+    }
+    
+    private static int lineEnd(byte[] b, int pos, int end) {
+        while (pos < end && b[pos] != '\r' && b[pos] != '\n') {
+            pos++;
+        }
+        return pos;
+    }
+    
+    private static int nextLine(byte[] b, int eol) {
+        if (eol < b.length && b[eol] == '\r') {
+            eol++;
+        }
+        if (eol < b.length && b[eol] == '\n') {
+            eol++;
+        }
+        return eol;
+    }
+    
+    /**
+     * Tell whether the attribute on a line is a digest, i.e. its name ends
+     * with "-Digest".
+     */
+    private static boolean isDigest(byte[] b, int pos, int end) {
+        int colon = pos;
+        while (colon < end && b[colon] != ':') {
+            colon++;
+        }
+        return colon - pos >= 7 && startsWithIgnoreCase(b, colon - 7, colon, "-Digest");
+    }
+    
+    private static boolean startsWithIgnoreCase(byte[] b, int pos, int end, String prefix) {
+        if (end - pos < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase((char) b[pos + i]) != Character.toLowerCase(prefix.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /** A byte array output stream whose array can be used directly. */
+    private static final class Buffer extends ByteArrayOutputStream {
+        public Buffer() {
+            super(256);
+        }
+        
+        byte[] array() {
+            return buf;
+        }
+    }
+}
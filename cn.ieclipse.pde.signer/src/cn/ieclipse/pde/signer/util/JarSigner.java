@@ -15,12 +15,16 @@
  */
 package cn.ieclipse.pde.signer.util;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
-
-import net.lingala.zip4j.core.ZipFile;
-import net.lingala.zip4j.model.FileHeader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.regex.Pattern;
 
 /**
  * @author Jamling
@@ -28,64 +32,130 @@ import net.lingala.zip4j.model.FileHeader;
  */
 public final class JarSigner {
     
-    public static boolean sign(String src, String dest, String store, String storePwd, String alias, String aliasPwd,
-            ProcessUtil.Callback callback) throws Exception {
-        String cmd = "jarsigner";
-        List<String> args = new ArrayList<String>();
-        args.add("-keystore");
-        args.add(String.format("\"%s\"", store));
-        args.add("-storepass");
-        args.add(String.format("\"%s\"", storePwd));
-        args.add("-keypass");
-        args.add(String.format("\"%s\"", aliasPwd));
-        if (dest != null && dest.length() > 0) {
-            args.add("-signedjar");
-            args.add(String.format("\"%s\"", dest));
-        }
-        args.add(String.format("\"%s\"", src));
-        args.add(String.format("\"%s\"", alias));
-        Process p = ProcessUtil.exec(cmd, args);
-        if (p == null) {
-            if (callback != null) {
-                callback.onError("Sign fail, please check your java enviroment.");
-            }
-            return false;
+    /**
+     * Get the name jarsigner gives to the signature files of an alias: its
+     * first 8 characters in upper case, those which are not letters, digits,
+     * - or _ replaced by _.
+     */
+    static String getSignatureName(String alias) {
+        String name = alias.length() > 8 ? alias.substring(0, 8) : alias;
+        name = name.toUpperCase(Locale.ENGLISH);
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+            sb.append(valid ? c : '_');
         }
-        ProcessUtil.dumpProcess(p, "gbk", callback);
-        int code = p.exitValue();
-        return code == 0;
+        return sb.toString();
     }
     
+    /**
+     * Remove the signature files, those matching {@link BcpSigner#stripPattern}
+     * or the default pattern if it is null, from a jar in place. Only the
+     * entries after the first signature file are moved, and the central
+     * directory is written again, so a jar signed by {@link BcpSigner}, whose
+     * signature files come last, is unsigned at once.
+     *
+     * @return whether a signature file was removed
+     */
     public static boolean removeMetaInf(String src) throws Exception {
-        ZipFile zipFile = new ZipFile(src);
-        System.out.println("valid ? " + zipFile.isValidZipFile());
-        FileHeader metainf = zipFile.getFileHeader("META-INF");
-        if (metainf != null) {
-            zipFile.removeFile(metainf);
-            return true;
-        }
-        return false;
+        Pattern pattern = BcpSigner.stripPattern;
+        return ZipStripper.strip(new File(src), pattern != null ? pattern : BcpSigner.DEFAULT_STRIP_PATTERN) > 0;
     }
     
+    /**
+     * Align an APK like zipalign does: the data of the stored entries is
+     * aligned on <code>align</code> bytes, and the data of the stored shared
+     * libraries on 4096 bytes. The entries are copied as they are, in the same
+     * order, but their extra fields, comments and external attributes are
+     * dropped. Aligning breaks the APK Signature Scheme v2 signature, so align
+     * before signing, or let {@link BcpSigner#zipAlignment} align while
+     * signing. The aligned APK is written to a temporary file next to dest
+     * which is then renamed over it, so dest may be src.
+     *
+     * @param c
+     *            only check the alignment of src
+     * @param f
+     *            overwrite dest
+     * @param z
+     *            recompress the deflated entries, not supported, the
+     *            compressed data is copied as is
+     * @return true if src is aligned when checking, true if dest was written
+     *         otherwise
+     */
     public static boolean optApk(String src, String dest, int align, boolean c, boolean f, boolean z) {
-        String cmd = new File("tool/zipalign").getAbsolutePath();
-        List<String> args = new ArrayList<String>();
-        if (c) {
-            args.add("-c");
-        }
-        if (f) {
-            args.add("-f");
-        }
-        if (z) {
-            args.add("-z");
+        ZipArchive in = null;
+        File tempFile = null;
+        OutputStream fileOutput = null;
+        try {
+            in = new ZipArchive(new File(src));
+            if (c) {
+                for (int i = 0; i < in.size(); i++) {
+                    int a = RawZipOutputStream.getAlignment(in.getNameBytes(i), in.getMethod(i), align);
+                    if (in.getDataOffset(i) % a != 0) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            File destFile = new File(dest);
+            if (destFile.exists() && !f) {
+                return false;
+            }
+            // Keep the order of the entries in src.
+            final ZipArchive zip = in;
+            Integer[] order = new Integer[in.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer lhs, Integer rhs) {
+                    long l = zip.getLocalHeaderOffset(lhs);
+                    long r = zip.getLocalHeaderOffset(rhs);
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+            tempFile = File.createTempFile(destFile.getName() + ".", ".tmp",
+                    destFile.getAbsoluteFile().getParentFile());
+            fileOutput = new FileOutputStream(tempFile);
+            RawZipOutputStream out = new RawZipOutputStream(new BufferedOutputStream(fileOutput, 65536));
+            out.setAlignment(align);
+            byte[] buffer = new byte[8192];
+            for (int i : order) {
+                out.putRawEntry(in.getName(i), in.getMethod(i), in.getCrc(i), in.getCompressedSize(i), in.getSize(i),
+                        in.getTime(i));
+                ByteBuffer data = in.getRawData(i);
+                while (data.hasRemaining()) {
+                    int num = Math.min(buffer.length, data.remaining());
+                    data.get(buffer, 0, num);
+                    out.write(buffer, 0, num);
+                }
+            }
+            out.close();
+            // src may be dest, and a mapped file can't be replaced on Windows.
+            in.close();
+            in = null;
+            BcpSigner.replaceFile(tempFile, destFile);
+            tempFile = null;
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+                // It is closed already unless copying failed, an unfinished
+                // APK needs no central directory.
+                if (fileOutput != null)
+                    fileOutput.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (tempFile != null) {
+                tempFile.delete();
+            }
         }
-        args.add(String.valueOf(align));
-        args.add(String.format("\"%s\"", src));
-        args.add(String.format("\"%s\"", dest));
-        Process p = ProcessUtil.exec(cmd, args);
-        ProcessUtil.dumpProcess(p, "gbk");
-        int code = p.exitValue();
-        return code == 0;
     }
     
     /**
@@ -20,8 +20,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStore.Entry;
 import java.security.KeyStore.PrivateKeyEntry;
@@ -30,6 +33,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.Provider;
 import java.security.PublicKey;
+import java.security.SecureRandom;
 import java.security.Security;
 import java.security.UnrecoverableEntryException;
 import java.security.UnrecoverableKeyException;
@@ -42,11 +46,25 @@ import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
 
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.CertIOException;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.util.encoders.Base64;
+
 /**
  * @author Jamling
  *         
  */
 public class KeyTool {
+    private static final int KEY_SIZE = 2048;
+    
     private String storeFile = "";
     private String storePass = "";
     private KeyStore store;
@@ -148,6 +166,48 @@ public class KeyTool {
         return e;
     }
     
+    /**
+     * Generate an RSA key pair and a self-signed certificate, like
+     * <code>keytool -genkeypair -keyalg RSA</code>, and add them to the store.
+     * The store is not saved.
+     * 
+     * @param alias
+     *            the alias of the new entry
+     * @param password
+     *            the password of the private key
+     * @param subject
+     *            the subject and issuer of the certificate
+     * @param validity
+     *            the validity of the certificate in days
+     * @return the certificate
+     */
+    public X509Certificate genKeyPair(String alias, String password, X500Name subject, long validity)
+            throws GeneralSecurityException {
+        if (store.containsAlias(alias)) {
+            throw new KeyStoreException("Alias <" + alias + "> already exists");
+        }
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(KEY_SIZE);
+        KeyPair pair = generator.generateKeyPair();
+        
+        long now = System.currentTimeMillis();
+        BigInteger serial = new BigInteger(64, new SecureRandom());
+        try {
+            X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(subject, serial, new Date(now),
+                    new Date(now + validity * 24 * 3600000), subject, pair.getPublic());
+            builder.addExtension(Extension.subjectKeyIdentifier, false,
+                    new JcaX509ExtensionUtils().createSubjectKeyIdentifier(pair.getPublic()));
+            ContentSigner signer = new JcaContentSignerBuilder("SHA256withRSA").build(pair.getPrivate());
+            X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(builder.build(signer));
+            store.setKeyEntry(alias, pair.getPrivate(), password.toCharArray(), new Certificate[] { certificate });
+            return certificate;
+        } catch (CertIOException e) {
+            throw new GeneralSecurityException(e.getMessage(), e);
+        } catch (OperatorCreationException e) {
+            throw new GeneralSecurityException(e.getMessage(), e);
+        }
+    }
+    
     public void deleteEntry(String alias) throws KeyStoreException {
         this.store.deleteEntry(alias);
     }
@@ -190,6 +250,40 @@ public class KeyTool {
         }
     }
     
+    /**
+     * Export the certificate of an alias like
+     * <code>keytool -exportcert [-rfc]</code>.
+     *
+     * @param pem
+     *            true to write it Base64 encoded between PEM armor lines, false
+     *            to write it DER encoded
+     */
+    public void exportCertificate(String alias, String path, boolean pem)
+            throws KeyStoreException, CertificateException, IOException {
+        X509Certificate c = getCertificate(alias);
+        if (c == null) {
+            throw new KeyStoreException("Alias <" + alias + "> has no X.509 certificate");
+        }
+        byte[] data = c.getEncoded();
+        FileOutputStream out = new FileOutputStream(path);
+        try {
+            if (pem) {
+                StringBuilder sb = new StringBuilder("-----BEGIN CERTIFICATE-----\n");
+                String base64 = new String(Base64.encode(data), "US-ASCII");
+                for (int i = 0; i < base64.length(); i += 64) {
+                    sb.append(base64, i, Math.min(i + 64, base64.length())).append('\n');
+                }
+                sb.append("-----END CERTIFICATE-----\n");
+                out.write(sb.toString().getBytes("US-ASCII"));
+            }
+            else {
+                out.write(data);
+            }
+        } finally {
+            out.close();
+        }
+    }
+    
     public KeyStore getStore() {
         return store;
     }
@@ -15,17 +15,53 @@
  */
 package cn.ieclipse.pde.signer.util;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * Runs external programs. The output and the error output of a process are
+ * read by two threads at the same time, so a process filling one pipe while
+ * the other is read never blocks.
+ *
  * @author Jamling
  *         
  */
 public class ProcessUtil {
+    /** The number of characters kept of the output and of the error output. */
+    public static final int OUTPUT_LIMIT = 64 * 1024;
+    
+    // How long the pumps are waited for once the process has exited.
+    private static final long PUMP_GRACE = 1000;
+    
+    private static final ExecutorService PUMPS = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ProcessUtil pump");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    
+    private static final Timer WATCHDOG = new Timer("ProcessUtil watchdog", true);
+    
     
     public static Process exec(String program, List<String> args) {
         ProcessBuilder builder = new ProcessBuilder();
@@ -75,52 +111,354 @@ public class ProcessUtil {
     }
     
     public static void dumpProcess(Process p, String encoding) {
-        int len = -1;
-        byte[] buf = new byte[8192];
-        try {
-            while ((len = p.getErrorStream().read(buf)) >= 0) {
-                System.out.println(new String(buf, 0, len, encoding));
+        dumpProcess(p, encoding, new Callback() {
+            
+            public void onError(String msg) {
+                System.out.println(msg);
             }
             
-            while ((len = p.getInputStream().read(buf)) >= 0) {
-                System.out.println(new String(buf, 0, len, encoding));
+            public void onCompleted(String msg) {
+                System.out.println(msg);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        });
     }
     
+    /**
+     * Read the output and the error output of a process at the same time, and
+     * wait until it has exited. The error output is passed to
+     * {@link Callback#onError(String)} then the output to
+     * {@link Callback#onCompleted(String)}, if they are not empty.
+     */
     public static void dumpProcess(Process p, String encoding, Callback callback) {
-        int len = -1;
-        byte[] buf = new byte[8192];
-        StringBuilder sb = new StringBuilder();
+        Result result;
         try {
-            while ((len = p.getErrorStream().read(buf)) >= 0) {
-                sb.append(new String(buf, 0, len, encoding));
-            }
-            
-            if (callback != null && sb.length() > 0) {
-                callback.onError(sb.toString());
+            result = waitFor(null, p, encoding, 0, null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            p.destroy();
+            return;
+        }
+        if (callback != null && result.getErrorOutput().length() > 0) {
+            callback.onError(result.getErrorOutput());
+        }
+        if (callback != null && result.getOutput().length() > 0) {
+            callback.onCompleted(result.getOutput());
+        }
+    }
+    
+    /**
+     * Run a command and wait until it has exited. Its output and error output
+     * are read at the same time, so it never blocks on a full pipe, and only
+     * their last {@link #OUTPUT_LIMIT} characters are kept.
+     *
+     * @param command
+     *            the program and its arguments
+     * @param dir
+     *            the working directory, or null for that of this process
+     * @param encoding
+     *            the encoding of the output, or null for the platform one
+     * @param timeout
+     *            the milliseconds after which the process is destroyed, or 0
+     *            to wait for ever
+     * @param listener
+     *            told about each line of output as it is read, or null
+     * @return how the process exited
+     * @throws IOException
+     *             if the process could not be started
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting, the process is
+     *             destroyed then
+     */
+    public static Result run(List<String> command, File dir, String encoding, long timeout, LineListener listener)
+            throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.directory(dir);
+        Process p = builder.start();
+        return waitFor(command, p, encoding, timeout, listener);
+    }
+    
+    /**
+     * Run many commands, at most <code>threads</code> at the same time, and
+     * wait until they have all exited. A command which could not be started
+     * has a result with an error.
+     *
+     * @param commands
+     *            the programs and their arguments
+     * @param dir
+     *            the working directory, or null for that of this process
+     * @param encoding
+     *            the encoding of the output, or null for the platform one
+     * @param timeout
+     *            the milliseconds after which a process is destroyed, or 0 to
+     *            wait for ever
+     * @param threads
+     *            the number of commands run at once, 0 for the number of
+     *            processors
+     * @return the result of each command, in the order of the commands
+     */
+    public static List<Result> runAll(List<List<String>> commands, final File dir, final String encoding,
+            final long timeout, int threads) throws InterruptedException {
+        if (commands.isEmpty()) {
+            return new ArrayList<Result>();
+        }
+        int n = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(n, commands.size()));
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>(commands.size());
+            for (final List<String> command : commands) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    public Result call() throws InterruptedException {
+                        try {
+                            return run(command, dir, encoding, timeout, null);
+                        } catch (IOException e) {
+                            return new Result(command, e);
+                        }
+                    }
+                }));
             }
-            sb.delete(0, sb.length());
-            
-            while ((len = p.getInputStream().read(buf)) >= 0) {
-                sb.append(new String(buf, 0, len, encoding));
+            List<Result> results = new ArrayList<Result>(commands.size());
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
             }
-            if (callback != null && sb.length() > 0) {
-                callback.onCompleted(sb.toString());
+            return results;
+        } finally {
+            // Interrupted, the processes still running are destroyed.
+            executor.shutdownNow();
+        }
+    }
+    
+    private static Result waitFor(List<String> command, final Process p, String encoding, long timeout,
+            LineListener listener) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        Charset charset = encoding == null ? Charset.defaultCharset() : Charset.forName(encoding);
+        // The process must not wait for an input which never comes.
+        try {
+            p.getOutputStream().close();
+        } catch (IOException e) {
+            // It has already exited.
+        }
+        Pump out = new Pump(p.getInputStream(), charset, false, listener);
+        Pump err = new Pump(p.getErrorStream(), charset, true, listener);
+        Future<?> outFuture = PUMPS.submit(out);
+        Future<?> errFuture = PUMPS.submit(err);
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        TimerTask watchdog = null;
+        if (timeout > 0) {
+            watchdog = new TimerTask() {
+                @Override
+                public void run() {
+                    timedOut.set(true);
+                    p.destroy();
+                }
+            };
+            WATCHDOG.schedule(watchdog, timeout);
+        }
+        int exitCode;
+        try {
+            exitCode = p.waitFor();
+            // A child of the process may keep the pipes open, so the pumps are
+            // not waited for long.
+            join(outFuture, PUMP_GRACE);
+            join(errFuture, PUMP_GRACE);
+        } catch (InterruptedException e) {
+            p.destroy();
+            throw e;
+        } finally {
+            if (watchdog != null) {
+                watchdog.cancel();
             }
+            // A pump blocked in a read is not woken by an interrupt, it ends
+            // once its stream is closed.
+            close(p.getInputStream());
+            close(p.getErrorStream());
+        }
+        return new Result(command, exitCode, out.getText(), err.getText(), timedOut.get(),
+                System.currentTimeMillis() - start);
+    }
+    
+    private static void close(InputStream in) {
+        try {
+            in.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            // The pump sees the end of the stream anyway.
         }
     }
     
+    private static void join(Future<?> future, long timeout) throws InterruptedException {
+        try {
+            future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            // The pump keeps what it has read.
+        } catch (TimeoutException e) {
+            // Ditto.
+        }
+    }
+    
+    /**
+     * Reads a stream line by line, keeping its last lines.
+     */
+    private static final class Pump implements Runnable {
+        private final InputStream in;
+        private final Charset charset;
+        private final boolean error;
+        private final LineListener listener;
+        private final LinkedList<String> lines = new LinkedList<String>();
+        private int length;
+        
+        Pump(InputStream in, Charset charset, boolean error, LineListener listener) {
+            this.in = in;
+            this.charset = charset;
+            this.error = error;
+            this.listener = listener;
+        }
+        
+        public void run() {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, charset));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    add(line);
+                    if (listener != null) {
+                        synchronized (listener) {
+                            listener.onLine(line, error);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // The process was destroyed.
+            } finally {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        
+        private synchronized void add(String line) {
+            lines.add(line);
+            length += line.length() + 1;
+            while (length > OUTPUT_LIMIT && lines.size() > 1) {
+                length -= lines.removeFirst().length() + 1;
+            }
+        }
+        
+        synchronized String getText() {
+            StringBuilder sb = new StringBuilder(length);
+            for (String line : lines) {
+                sb.append(line).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+    
+    /**
+     * Told about the lines of a process as they are read, by one thread at a
+     * time.
+     */
+    public static interface LineListener {
+        /**
+         * @param line
+         *            the line, without its terminator
+         * @param error
+         *            whether the line was read from the error output
+         */
+        void onLine(String line, boolean error);
+    }
+    
     public static interface Callback {
         void onError(String msg);
         
         void onCompleted(String msg);
     }
     
+    /**
+     * How a process exited.
+     */
+    public static final class Result {
+        private final List<String> command;
+        private final int exitCode;
+        private final String output;
+        private final String errorOutput;
+        private final boolean timedOut;
+        private final long time;
+        private final IOException error;
+        
+        Result(List<String> command, int exitCode, String output, String errorOutput, boolean timedOut, long time) {
+            this.command = command;
+            this.exitCode = exitCode;
+            this.output = output;
+            this.errorOutput = errorOutput;
+            this.timedOut = timedOut;
+            this.time = time;
+            this.error = null;
+        }
+        
+        Result(List<String> command, IOException error) {
+            this.command = command;
+            this.exitCode = -1;
+            this.output = "";
+            this.errorOutput = "";
+            this.timedOut = false;
+            this.time = 0;
+            this.error = error;
+        }
+        
+        public List<String> getCommand() {
+            return command;
+        }
+        
+        /** Get the exit code, -1 if the process could not be started. */
+        public int getExitCode() {
+            return exitCode;
+        }
+        
+        /** Get the last lines of the output. */
+        public String getOutput() {
+            return output;
+        }
+        
+        /** Get the last lines of the error output. */
+        public String getErrorOutput() {
+            return errorOutput;
+        }
+        
+        /** Tell whether the process was destroyed as it took too long. */
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+        
+        /** Get how long the process ran, in milliseconds. */
+        public long getTime() {
+            return time;
+        }
+        
+        /** Get why the process could not be started, or null. */
+        public IOException getError() {
+            return error;
+        }
+        
+        public boolean isSuccess() {
+            return error == null && !timedOut && exitCode == 0;
+        }
+        
+        @Override
+        public String toString() {
+            if (error != null) {
+                return command + " failed: " + error;
+            }
+            return command + (timedOut ? " timed out after " : " exited with " + exitCode + " after ") + time + " ms";
+        }
+    }
+    
     /**
      * @param args
      */
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.pde.signer.util;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes digested and written while an archive is signed, and
+ * passes them on to a {@link Signer.Progress}. The threads count the bytes of
+ * each buffer themselves and add them here every {@link #BATCH_SIZE} bytes,
+ * which is when the progress is told and asked whether to cancel.
+ *
+ * @author Jamling
+ *         
+ */
+final class ProgressTracker {
+    /** The number of bytes a thread counts before adding them. */
+    static final int BATCH_SIZE = 1 << 20;
+    
+    private final Signer.Progress progress;
+    private final AtomicLong digested = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private volatile boolean canceled;
+    
+    /**
+     * @param progress
+     *            the progress to tell, or null
+     */
+    ProgressTracker(Signer.Progress progress) {
+        this.progress = progress;
+    }
+    
+    /**
+     * Tell the progress that a phase begins.
+     *
+     * @param total
+     *            the number of bytes the phase digests or writes, or -1
+     */
+    void begin(Signer.Phase phase, long total) {
+        if (progress != null) {
+            progress.begin(phase, total);
+        }
+        checkCanceled();
+    }
+    
+    /**
+     * Add the bytes a thread has digested and written since it last called
+     * this.
+     */
+    void add(long digestedBytes, long writtenBytes) {
+        if (progress == null) {
+            return;
+        }
+        progress.update(digested.addAndGet(digestedBytes), written.addAndGet(writtenBytes));
+        checkCanceled();
+    }
+    
+    /**
+     * Throw a {@link CancellationException} if the progress has been canceled,
+     * the partial output is then deleted by the signer.
+     */
+    void checkCanceled() {
+        if (!canceled && progress != null && progress.isCanceled()) {
+            canceled = true;
+        }
+        if (canceled) {
+            throw new CancellationException("canceled");
+        }
+    }
+}
@@ -0,0 +1,490 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.pde.signer.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Zip output stream which can copy the raw data of an entry from another
+ * archive, so the data is neither inflated nor deflated again. Entries added
+ * with {@link #putNextEntry(String, long)} are deflated as they are written and
+ * followed by a data descriptor. The central directory is kept as the bytes it
+ * is written with, so no object is held per entry. The data of the stored
+ * entries may be aligned like zipalign does, the padding is an extra field of
+ * the local header.
+ *
+ * @author Jamling
+ *         
+ */
+final class RawZipOutputStream extends OutputStream {
+    private static final int FLAG_DESCRIPTOR = 0x8;
+    private static final int FLAG_UTF8 = 0x800;
+    private static final int DESCRIPTOR_SIG = 0x08074b50;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    // The extra field which pads the local header of an aligned entry, as
+    // written by apksigner: the alignment followed by zeros.
+    private static final int ALIGNMENT_EXTRA_ID = 0xd935;
+    private static final int ALIGNMENT_EXTRA_SIZE = 6;
+    static final int PAGE_SIZE = 4096;
+    private static final byte[] ZEROS = new byte[PAGE_SIZE];
+    
+    private final OutputStream out;
+    private final byte[] header = new byte[64];
+    private long written;
+    private byte[] directory = new byte[8192];
+    private int directorySize;
+    private int count;
+    
+    // the current entry
+    private byte[] name;
+    private int method;
+    private int flags;
+    private int dosTime;
+    private long offset;
+    private long crc;
+    private long compressedSize;
+    private long size;
+    private long remaining;
+    private CRC32 crc32;
+    private Deflater deflater;
+    private byte[] deflated;
+    private boolean finished;
+    private OutputStream observer;
+    private int alignment;
+    
+    public RawZipOutputStream(OutputStream out) {
+        this.out = out;
+    }
+    
+    /**
+     * Add entries to an existing archive, <code>out</code> writes after its
+     * last entry.
+     *
+     * @param offset
+     *            where <code>out</code> writes in the archive
+     * @param directory
+     *            the central directory headers of the entries of the archive
+     * @param count
+     *            the number of the headers
+     */
+    RawZipOutputStream(OutputStream out, long offset, byte[] directory, int directorySize, int count) {
+        this.out = out;
+        this.written = offset;
+        this.directory = directory;
+        this.directorySize = directorySize;
+        this.count = count;
+    }
+    
+    /**
+     * Get the number of bytes written so far.
+     */
+    public long getOffset() {
+        return written;
+    }
+    
+    /**
+     * Feed 'observer' with the data written from now on, up to the central
+     * directory.
+     */
+    public void setObserver(OutputStream observer) {
+        this.observer = observer;
+    }
+    
+    /**
+     * Align the data of the stored entries written from now on on
+     * <code>alignment</code> bytes, 4 for APKs, and the data of the stored
+     * shared libraries on {@link #PAGE_SIZE} bytes so they can be mapped in
+     * place. 0 disables the alignment.
+     */
+    public void setAlignment(int alignment) {
+        this.alignment = alignment;
+    }
+    
+    /**
+     * Get the alignment of the data of an entry, 1 if it is not aligned.
+     */
+    static int getAlignment(byte[] name, int method, int alignment) {
+        if (alignment <= 1 || method != ZipEntry.STORED) {
+            return 1;
+        }
+        int n = name.length;
+        if (n >= 3 && name[n - 3] == '.' && name[n - 2] == 's' && name[n - 1] == 'o') {
+            return PAGE_SIZE;
+        }
+        return alignment;
+    }
+    
+    /**
+     * Tell whether the archive needs the zip64 end records.
+     */
+    public boolean isZip64() {
+        return count >= 0xffff || written >= ZIP64_MAGIC || directorySize >= ZIP64_MAGIC;
+    }
+    
+    /**
+     * Write the central directory of the entries closed so far to 'out'.
+     */
+    public void writeCentralDirectory(OutputStream out) throws IOException {
+        out.write(directory, 0, directorySize);
+    }
+    
+    /**
+     * Get the end records of the archive if its central directory was
+     * written at <code>cdOffset</code>.
+     */
+    public byte[] getEndRecords(long cdOffset) {
+        long cdSize = directorySize;
+        byte[] b = new byte[56 + 20 + ZipArchive.EOCD_SIZE];
+        int p = 0;
+        if (count >= 0xffff || cdOffset >= ZIP64_MAGIC || cdSize >= ZIP64_MAGIC) {
+            long zip64Offset = cdOffset + cdSize;
+            putInt(b, 0, ZipArchive.ZIP64_EOCD_SIG);
+            putLong(b, 4, 44);
+            putShort(b, 12, 45);
+            putShort(b, 14, 45);
+            putInt(b, 16, 0);
+            putInt(b, 20, 0);
+            putLong(b, 24, count);
+            putLong(b, 32, count);
+            putLong(b, 40, cdSize);
+            putLong(b, 48, cdOffset);
+            putInt(b, 56, ZipArchive.ZIP64_LOCATOR_SIG);
+            putInt(b, 60, 0);
+            putLong(b, 64, zip64Offset);
+            putInt(b, 72, 1);
+            p = 76;
+        }
+        putInt(b, p, ZipArchive.EOCD_SIG);
+        putShort(b, p + 4, 0);
+        putShort(b, p + 6, 0);
+        putShort(b, p + 8, Math.min(count, 0xffff));
+        putShort(b, p + 10, Math.min(count, 0xffff));
+        putInt(b, p + 12, (int) Math.min(cdSize, ZIP64_MAGIC));
+        putInt(b, p + 16, (int) Math.min(cdOffset, ZIP64_MAGIC));
+        putShort(b, p + 20, 0);
+        return Arrays.copyOf(b, p + ZipArchive.EOCD_SIZE);
+    }
+    
+    /**
+     * Begin an entry whose raw data is written as is, the caller must write
+     * exactly <code>compressedSize</code> bytes before closing the entry.
+     */
+    public void putRawEntry(String name, int method, long crc, long compressedSize, long size, long time)
+            throws IOException {
+        beginEntry(name, method, 0, time);
+        this.crc = crc;
+        this.compressedSize = compressedSize;
+        this.size = size;
+        writeLocalHeader();
+        remaining = compressedSize;
+    }
+    
+    /**
+     * Begin a new entry which will be deflated.
+     */
+    public void putNextEntry(String name, long time) throws IOException {
+        beginEntry(name, ZipEntry.DEFLATED, FLAG_DESCRIPTOR, time);
+        writeLocalHeader();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflated = new byte[8192];
+            crc32 = new CRC32();
+        }
+    }
+    
+    public void closeEntry() throws IOException {
+        if (name == null) {
+            return;
+        }
+        if (flags == FLAG_DESCRIPTOR) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate();
+            }
+            crc = crc32.getValue();
+            size = deflater.getBytesRead();
+            compressedSize = deflater.getBytesWritten();
+            deflater.reset();
+            crc32.reset();
+            if (size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC) {
+                throw new ZipException("entry too large: " + ZipArchive.toString(name, 0, name.length));
+            }
+            putInt(header, 0, DESCRIPTOR_SIG);
+            putInt(header, 4, (int) crc);
+            putInt(header, 8, (int) compressedSize);
+            putInt(header, 12, (int) size);
+            writeRaw(header, 0, 16);
+        }
+        else if (remaining != 0) {
+            throw new ZipException(String.format("invalid size of %s, %d bytes missing",
+                    ZipArchive.toString(name, 0, name.length), remaining));
+        }
+        addCentralHeader();
+        name = null;
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (name == null) {
+            throw new ZipException("no current entry");
+        }
+        if (flags == FLAG_DESCRIPTOR) {
+            crc32.update(b, off, len);
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+            return;
+        }
+        if (len > remaining) {
+            throw new ZipException("too many bytes for " + ZipArchive.toString(name, 0, name.length));
+        }
+        writeRaw(b, off, len);
+        remaining -= len;
+    }
+    
+    /**
+     * Write the central directory and the end of central directory record.
+     */
+    public void finish() throws IOException {
+        finish(null);
+    }
+    
+    /**
+     * Write <code>block</code> unless it is null, then the central directory
+     * and the end of central directory record.
+     */
+    public void finish(byte[] block) throws IOException {
+        if (finished) {
+            return;
+        }
+        closeEntry();
+        observer = null;
+        if (block != null) {
+            writeRaw(block, 0, block.length);
+        }
+        long cdOffset = written;
+        writeRaw(directory, 0, directorySize);
+        directory = null;
+        byte[] end = getEndRecords(cdOffset);
+        writeRaw(end, 0, end.length);
+        out.flush();
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        finished = true;
+    }
+    
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+    
+    private void beginEntry(String name, int method, int flags, long time) throws IOException {
+        closeEntry();
+        byte[] b = ZipArchive.getBytes(name);
+        if (b.length > 0xffff) {
+            throw new ZipException("entry name too long: " + name);
+        }
+        this.name = b;
+        this.method = method;
+        this.flags = flags;
+        this.dosTime = toDosTime(time);
+        this.offset = written;
+        this.crc = 0;
+        this.compressedSize = 0;
+        this.size = 0;
+    }
+    
+    private int version() {
+        return method == ZipEntry.DEFLATED ? 20 : 10;
+    }
+    
+    private void deflate() throws IOException {
+        int n = deflater.deflate(deflated);
+        writeRaw(deflated, 0, n);
+    }
+    
+    private void writeLocalHeader() throws IOException {
+        boolean zip64 = size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC;
+        int extra = zip64 ? 20 : 0;
+        int align = getAlignment(name, method, alignment);
+        int padding = 0;
+        if (align > 1) {
+            long start = written + ZipArchive.LOCAL_HEADER_SIZE + name.length + extra + ALIGNMENT_EXTRA_SIZE;
+            padding = (int) ((align - start % align) % align);
+            extra += ALIGNMENT_EXTRA_SIZE + padding;
+        }
+        putInt(header, 0, ZipArchive.LOCAL_SIG);
+        putShort(header, 4, zip64 ? 45 : version());
+        putShort(header, 6, FLAG_UTF8 | flags);
+        putShort(header, 8, method);
+        putInt(header, 10, dosTime);
+        putInt(header, 14, (int) crc);
+        putInt(header, 18, (int) (zip64 ? ZIP64_MAGIC : compressedSize));
+        putInt(header, 22, (int) (zip64 ? ZIP64_MAGIC : size));
+        putShort(header, 26, name.length);
+        putShort(header, 28, extra);
+        writeRaw(header, 0, ZipArchive.LOCAL_HEADER_SIZE);
+        writeRaw(name, 0, name.length);
+        if (zip64) {
+            putShort(header, 0, ZipArchive.ZIP64_EXTRA_ID);
+            putShort(header, 2, 16);
+            putLong(header, 4, size);
+            putLong(header, 12, compressedSize);
+            writeRaw(header, 0, 20);
+        }
+        if (align > 1) {
+            putShort(header, 0, ALIGNMENT_EXTRA_ID);
+            putShort(header, 2, 2 + padding);
+            putShort(header, 4, align);
+            writeRaw(header, 0, ALIGNMENT_EXTRA_SIZE);
+            writeRaw(ZEROS, 0, padding);
+        }
+    }
+    
+    /**
+     * Append the central directory header of the current entry to the
+     * directory written by {@link #finish()}.
+     */
+    private void addCentralHeader() {
+        int extra = 0;
+        if (size >= ZIP64_MAGIC) {
+            extra += 8;
+        }
+        if (compressedSize >= ZIP64_MAGIC) {
+            extra += 8;
+        }
+        if (offset >= ZIP64_MAGIC) {
+            extra += 8;
+        }
+        int len = ZipArchive.CENTRAL_HEADER_SIZE + name.length + (extra > 0 ? extra + 4 : 0);
+        if (directorySize + len > directory.length) {
+            long capacity = Math.max(directory.length * 2L, (long) directorySize + len);
+            directory = Arrays.copyOf(directory, (int) Math.min(capacity, Integer.MAX_VALUE - 8));
+        }
+        byte[] b = directory;
+        int p = directorySize;
+        int version = extra > 0 ? 45 : version();
+        putInt(b, p, ZipArchive.CENTRAL_SIG);
+        putShort(b, p + 4, version);
+        putShort(b, p + 6, version);
+        putShort(b, p + 8, FLAG_UTF8 | flags);
+        putShort(b, p + 10, method);
+        putInt(b, p + 12, dosTime);
+        putInt(b, p + 16, (int) crc);
+        putInt(b, p + 20, (int) Math.min(compressedSize, ZIP64_MAGIC));
+        putInt(b, p + 24, (int) Math.min(size, ZIP64_MAGIC));
+        putShort(b, p + 28, name.length);
+        putShort(b, p + 30, extra > 0 ? extra + 4 : 0);
+        putShort(b, p + 32, 0);
+        putShort(b, p + 34, 0);
+        putShort(b, p + 36, 0);
+        putInt(b, p + 38, 0);
+        putInt(b, p + 42, (int) Math.min(offset, ZIP64_MAGIC));
+        p += ZipArchive.CENTRAL_HEADER_SIZE;
+        System.arraycopy(name, 0, b, p, name.length);
+        p += name.length;
+        if (extra > 0) {
+            putShort(b, p, ZipArchive.ZIP64_EXTRA_ID);
+            putShort(b, p + 2, extra);
+            p += 4;
+            if (size >= ZIP64_MAGIC) {
+                putLong(b, p, size);
+                p += 8;
+            }
+            if (compressedSize >= ZIP64_MAGIC) {
+                putLong(b, p, compressedSize);
+                p += 8;
+            }
+            if (offset >= ZIP64_MAGIC) {
+                putLong(b, p, offset);
+                p += 8;
+            }
+        }
+        directorySize = p;
+        count++;
+    }
+    
+    private void writeRaw(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        if (observer != null) {
+            observer.write(b, off, len);
+        }
+        written += len;
+    }
+    
+    static void putShort(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >> 8);
+    }
+    
+    static void putInt(byte[] b, int off, int v) {
+        putShort(b, off, v);
+        putShort(b, off + 2, v >> 16);
+    }
+    
+    static void putLong(byte[] b, int off, long v) {
+        putInt(b, off, (int) v);
+        putInt(b, off + 4, (int) (v >> 32));
+    }
+    
+    /**
+     * Convert an MS-DOS date and time to a java time, the same way as
+     * {@link ZipEntry#getTime()}.
+     */
+    static long toJavaTime(int dosTime) {
+        Calendar c = Calendar.getInstance();
+        c.clear();
+        c.set(((dosTime >> 25) & 0x7f) + 1980, ((dosTime >> 21) & 0x0f) - 1, (dosTime >> 16) & 0x1f,
+                (dosTime >> 11) & 0x1f, (dosTime >> 5) & 0x3f, (dosTime << 1) & 0x3e);
+        return c.getTimeInMillis();
+    }
+    
+    /**
+     * Convert a java time to the MS-DOS date and time format, the same way as
+     * {@link ZipEntry#setTime(long)}.
+     */
+    static int toDosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+                | c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.pde.signer.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Digest the data written in segments of a fixed size. The segments are
+ * digested by a pool of workers as soon as they are full, only a few segments
+ * are buffered.
+ *
+ * @author Jamling
+ *         
+ */
+abstract class SegmentDigester extends OutputStream {
+    private final ExecutorService executor;
+    private final int segmentSize;
+    private final BlockingQueue<byte[]> free;
+    private final int maxBuffers;
+    private int buffers;
+    private final List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+    private byte[] segment;
+    private int count;
+    private long size;
+    
+    /**
+     * @param executor
+     *            the workers, or null to digest the segments in the calling
+     *            thread
+     * @param threads
+     *            the number of workers
+     * @param segmentSize
+     *            the size of the segments
+     */
+    protected SegmentDigester(ExecutorService executor, int threads, int segmentSize) {
+        this.executor = executor;
+        this.segmentSize = segmentSize;
+        this.maxBuffers = executor != null ? 2 * threads : 1;
+        this.free = new ArrayBlockingQueue<byte[]>(maxBuffers);
+    }
+    
+    /**
+     * Digest a segment, <code>length</code> is less than the segment size for
+     * the last one only. The array may be modified.
+     */
+    protected abstract byte[] digest(byte[] data, int length) throws Exception;
+    
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        size += len;
+        while (len > 0) {
+            if (segment == null) {
+                segment = take();
+                count = 0;
+            }
+            int num = Math.min(len, segmentSize - count);
+            System.arraycopy(b, off, segment, count, num);
+            count += num;
+            off += num;
+            len -= num;
+            if (count == segmentSize) {
+                submit();
+            }
+        }
+    }
+    
+    /** Get the number of bytes written. */
+    public long getSize() {
+        return size;
+    }
+    
+    /**
+     * Get the digests of the segments written, one after the other.
+     */
+    public byte[] finish() throws IOException {
+        if (segment != null && count > 0) {
+            submit();
+        }
+        try {
+            int length = 0;
+            List<byte[]> digests = new ArrayList<byte[]>(results.size());
+            for (Future<byte[]> result : results) {
+                byte[] digest = result.get();
+                digests.add(digest);
+                length += digest.length;
+            }
+            byte[] all = new byte[length];
+            int pos = 0;
+            for (byte[] digest : digests) {
+                System.arraycopy(digest, 0, all, pos, digest.length);
+                pos += digest.length;
+            }
+            return all;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while digesting");
+        } catch (ExecutionException e) {
+            throw new IOException(String.valueOf(e.getCause()));
+        }
+    }
+    
+    private byte[] take() throws IOException {
+        byte[] b = free.poll();
+        if (b != null) {
+            return b;
+        }
+        if (buffers < maxBuffers) {
+            buffers++;
+            return new byte[segmentSize];
+        }
+        try {
+            return free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while digesting");
+        }
+    }
+    
+    private void submit() {
+        final byte[] data = segment;
+        final int length = count;
+        segment = null;
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                try {
+                    return digest(data, length);
+                } finally {
+                    free.offer(data);
+                }
+            }
+        });
+        if (executor != null) {
+            executor.execute(task);
+        }
+        else {
+            task.run();
+        }
+        results.add(task);
+    }
+}
@@ -16,6 +16,7 @@
 
 package cn.ieclipse.pde.signer.util;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -28,6 +29,9 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.DigestOutputStream;
 import java.security.GeneralSecurityException;
 import java.security.Key;
@@ -43,7 +47,6 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Map;
 import java.util.TreeMap;
@@ -60,15 +63,20 @@ import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 
 import org.bouncycastle.asn1.ASN1InputStream;
-import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.DEROutputStream;
+import org.bouncycastle.asn1.DERSet;
 import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.SignedData;
+import org.bouncycastle.asn1.cms.SignerInfo;
+import org.bouncycastle.asn1.x509.Certificate;
 import org.bouncycastle.cert.jcajce.JcaCertStore;
 import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.CMSProcessableByteArray;
 import org.bouncycastle.cms.CMSSignedData;
 import org.bouncycastle.cms.CMSSignedDataGenerator;
 import org.bouncycastle.cms.CMSTypedData;
+import org.bouncycastle.cms.SignerInfoGenerator;
 import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.operator.ContentSigner;
@@ -178,8 +186,33 @@ class SignApk {
         }
     }
     
-    /** Add the SHA1 of every file to the manifest, creating it if necessary. */
-    private static Manifest addDigestsToManifest(JarFile jar) throws IOException, GeneralSecurityException {
+    /**
+     * Get the entries to be signed, sorted by name. We add them to the output
+     * manifest in sorted order and expect that the output map will be
+     * deterministic.
+     */
+    private static JarEntry[] getSignEntries(JarFile jar) {
+        TreeMap<String, JarEntry> byName = new TreeMap<String, JarEntry>();
+        
+        for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements();) {
+            JarEntry entry = e.nextElement();
+            String name = entry.getName();
+            if (!entry.isDirectory() && !name.equals(JarFile.MANIFEST_NAME) && !name.equals(CERT_SF_NAME)
+                    && !name.equals(CERT_RSA_NAME) && !name.equals(OTACERT_NAME)
+                    && (stripPattern == null || !stripPattern.matcher(name).matches())) {
+                byName.put(name, entry);
+            }
+        }
+        return byName.values().toArray(new JarEntry[byName.size()]);
+    }
+    
+    /**
+     * Add the SHA1 of every file to the manifest, creating it if necessary.
+     * <code>digests</code> holds the digest of each entry in the same order as
+     * <code>entries</code>.
+     */
+    private static Manifest addDigestsToManifest(JarFile jar, JarEntry[] entries, byte[][] digests)
+            throws IOException {
         Manifest input = jar.getManifest();
         Manifest output = new Manifest();
         Attributes main = output.getMainAttributes();
@@ -191,38 +224,14 @@ class SignApk {
             main.putValue("Created-By", "1.0 (Android SignApk)");
         }
         
-        MessageDigest md = MessageDigest.getInstance("SHA1");
-        byte[] buffer = new byte[4096];
-        int num;
-        
-        // We sort the input entries by name, and add them to the
-        // output manifest in sorted order. We expect that the output
-        // map will be deterministic.
-        
-        TreeMap<String, JarEntry> byName = new TreeMap<String, JarEntry>();
-        
-        for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements();) {
-            JarEntry entry = e.nextElement();
-            byName.put(entry.getName(), entry);
-        }
-        
-        for (JarEntry entry : byName.values()) {
-            String name = entry.getName();
-            if (!entry.isDirectory() && !name.equals(JarFile.MANIFEST_NAME) && !name.equals(CERT_SF_NAME)
-                    && !name.equals(CERT_RSA_NAME) && !name.equals(OTACERT_NAME)
-                    && (stripPattern == null || !stripPattern.matcher(name).matches())) {
-                InputStream data = jar.getInputStream(entry);
-                while ((num = data.read(buffer)) > 0) {
-                    md.update(buffer, 0, num);
-                }
-                
-                Attributes attr = null;
-                if (input != null)
-                    attr = input.getAttributes(name);
-                attr = attr != null ? new Attributes(attr) : new Attributes();
-                attr.putValue("SHA1-Digest", new String(Base64.encode(md.digest()), "ASCII"));
-                output.getEntries().put(name, attr);
-            }
+        for (int i = 0; i < entries.length; i++) {
+            String name = entries[i].getName();
+            Attributes attr = null;
+            if (input != null)
+                attr = input.getAttributes(name);
+            attr = attr != null ? new Attributes(attr) : new Attributes();
+            attr.putValue("SHA1-Digest", new String(Base64.encode(digests[i]), "ASCII"));
+            output.getEntries().put(name, attr);
         }
         
         return output;
@@ -327,29 +336,49 @@ class SignApk {
         }
     }
     
-    private static class CMSByteArraySlice implements CMSTypedData {
-        private final ASN1ObjectIdentifier type;
-        private final byte[] data;
-        private final int offset;
-        private final int length;
-        
-        public CMSByteArraySlice(byte[] data, int offset, int length) {
-            this.data = data;
-            this.offset = offset;
-            this.length = length;
-            this.type = new ASN1ObjectIdentifier(CMSObjectIdentifiers.data.getId());
-        }
+    /**
+     * Write to another stream and feed a signer with everything but the last
+     * two bytes written so far. Once the whole zip file has been written, the
+     * bytes held back are the comment length of the EOCD, which are not
+     * covered by the whole file signature.
+     */
+    private static class WholeFileOutputStream extends FilterOutputStream {
+        private final OutputStream signer;
+        private final byte[] tail = new byte[2];
+        private int tailLength;
         
-        public Object getContent() {
-            throw new UnsupportedOperationException();
+        public WholeFileOutputStream(OutputStream out, OutputStream signer) {
+            super(out);
+            this.signer = signer;
         }
         
-        public ASN1ObjectIdentifier getContentType() {
-            return type;
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
         }
         
-        public void write(OutputStream out) throws IOException {
-            out.write(data, offset, length);
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            int emit = tailLength + len - tail.length;
+            if (emit <= 0) {
+                System.arraycopy(b, off, tail, tailLength, len);
+                tailLength += len;
+                return;
+            }
+            int fromTail = Math.min(tailLength, emit);
+            signer.write(tail, 0, fromTail);
+            signer.write(b, off, emit - fromTail);
+            byte[] held = new byte[tail.length];
+            int k = 0;
+            for (int i = fromTail; i < tailLength; i++) {
+                held[k++] = tail[i];
+            }
+            for (int i = off + emit - fromTail; i < off + len; i++) {
+                held[k++] = b[i];
+            }
+            System.arraycopy(held, 0, tail, 0, tail.length);
+            tailLength = tail.length;
         }
     }
     
@@ -375,17 +404,70 @@ class SignApk {
         dos.writeObject(asn1.readObject());
     }
     
-    private static void signWholeOutputFile(byte[] zipData, OutputStream outputStream, X509Certificate publicKey,
-            PrivateKey privateKey)
-                    throws IOException, CertificateEncodingException, OperatorCreationException, CMSException {
-        // For a zip with no archive comment, the
-        // end-of-central-directory record will be 22 bytes long, so
-        // we expect to find the EOCD marker 22 bytes from the end.
-        if (zipData[zipData.length - 22] != 0x50 || zipData[zipData.length - 21] != 0x4b
-                || zipData[zipData.length - 20] != 0x05 || zipData[zipData.length - 19] != 0x06) {
-            throw new IllegalArgumentException("zip data already has an archive comment");
+    /**
+     * Create the generator of the whole file signature. The signed data must be
+     * written to its calculating output stream before the signature block is
+     * generated.
+     */
+    private static SignerInfoGenerator createWholeFileSigner(X509Certificate publicKey, PrivateKey privateKey)
+            throws CertificateEncodingException, OperatorCreationException {
+        ContentSigner sha1Signer = new JcaContentSignerBuilder("SHA1withRSA").setProvider(sBouncyCastleProvider)
+                .build(privateKey);
+        return new JcaSignerInfoGeneratorBuilder(
+                new JcaDigestCalculatorProviderBuilder().setProvider(sBouncyCastleProvider).build())
+                        .setDirectSignature(true).build(sha1Signer, publicKey);
+    }
+    
+    /**
+     * Write the detached signature of the data already fed to the signer to
+     * 'out', the same way as {@link CMSSignedDataGenerator} does.
+     */
+    private static void writeSignatureBlock(SignerInfoGenerator signer, X509Certificate publicKey,
+            OutputStream out) throws IOException, CertificateEncodingException, CMSException {
+        SignerInfo signerInfo = signer.generate(CMSObjectIdentifiers.data);
+        SignedData signedData = new SignedData(new DERSet(signerInfo.getDigestAlgorithm()),
+                new ContentInfo(CMSObjectIdentifiers.data, null),
+                new DERSet(Certificate.getInstance(publicKey.getEncoded())), null, new DERSet(signerInfo));
+        DEROutputStream dos = new DEROutputStream(out);
+        dos.writeObject(new ContentInfo(CMSObjectIdentifiers.signedData, signedData));
+    }
+    
+    /**
+     * Append the whole file signature to the zip file as the archive comment.
+     * The signer has been fed with the zip data while it was written, so the
+     * file is only accessed at its end.
+     */
+    private static void signWholeOutputFile(File zipFile, SignerInfoGenerator signer, X509Certificate publicKey)
+            throws IOException, CertificateEncodingException, CMSException {
+        RandomAccessFile raf = new RandomAccessFile(zipFile, "rw");
+        try {
+            FileChannel zip = raf.getChannel();
+            long length = zip.size();
+            ByteBuffer eocd = ByteBuffer.allocate(22);
+            if (length >= eocd.capacity()) {
+                readFully(zip, eocd, length - eocd.capacity());
+            }
+            // For a zip with no archive comment, the
+            // end-of-central-directory record will be 22 bytes long, so
+            // we expect to find the EOCD marker 22 bytes from the end.
+            if (eocd.get(0) != 0x50 || eocd.get(1) != 0x4b || eocd.get(2) != 0x05 || eocd.get(3) != 0x06) {
+                throw new IllegalArgumentException("zip data already has an archive comment");
+            }
+            
+            byte[] b = createWholeFileComment(signer, publicKey);
+            int total_size = b.length;
+            byte[] size = new byte[] { (byte) (total_size & 0xff), (byte) ((total_size >> 8) & 0xff) };
+            
+            // Patch the comment length of the EOCD and append the comment.
+            writeFully(zip, ByteBuffer.wrap(size), length - 2);
+            writeFully(zip, ByteBuffer.wrap(b), length);
+        } finally {
+            raf.close();
         }
-        
+    }
+    
+    private static byte[] createWholeFileComment(SignerInfoGenerator signer, X509Certificate publicKey)
+            throws IOException, CertificateEncodingException, CMSException {
         ByteArrayOutputStream temp = new ByteArrayOutputStream();
         
         // put a readable message and a null char at the start of the
@@ -396,7 +478,7 @@ class SignApk {
         temp.write(message);
         temp.write(0);
         
-        writeSignatureBlock(new CMSByteArraySlice(zipData, 0, zipData.length - 2), publicKey, privateKey, temp);
+        writeSignatureBlock(signer, publicKey, temp);
         int total_size = temp.size() + 6;
         if (total_size > 0xffff) {
             throw new IllegalArgumentException("signature is too big for ZIP file comment");
@@ -430,27 +512,42 @@ class SignApk {
             }
         }
         
-        outputStream.write(zipData, 0, zipData.length - 2);
-        outputStream.write(total_size & 0xff);
-        outputStream.write((total_size >> 8) & 0xff);
-        temp.writeTo(outputStream);
+        return b;
+    }
+    
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int num = channel.read(buffer, position);
+            if (num < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            position += num;
+        }
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
     }
     
     /**
-     * Copy all the files in a manifest from input to output. We set the
-     * modification times in the output to a fixed time, so as to reduce
-     * variation in the output file and make incremental OTAs more efficient.
+     * Copy all the entries from input to output. We set the modification times
+     * in the output to a fixed time, so as to reduce variation in the output
+     * file and make incremental OTAs more efficient. The SHA1 of every entry is
+     * computed from the bytes on their way to the output, so each entry is read
+     * only once.
      */
-    private static void copyFiles(Manifest manifest, JarFile in, JarOutputStream out, long timestamp)
-            throws IOException {
+    private static byte[][] copyFiles(JarEntry[] entries, JarFile in, JarOutputStream out, long timestamp)
+            throws IOException, GeneralSecurityException {
+        MessageDigest md = MessageDigest.getInstance("SHA1");
+        DigestOutputStream digestOut = new DigestOutputStream(out, md);
+        byte[][] digests = new byte[entries.length][];
         byte[] buffer = new byte[4096];
         int num;
         
-        Map<String, Attributes> entries = manifest.getEntries();
-        ArrayList<String> names = new ArrayList<String>(entries.keySet());
-        Collections.sort(names);
-        for (String name : names) {
-            JarEntry inEntry = in.getJarEntry(name);
+        for (int i = 0; i < entries.length; i++) {
+            JarEntry inEntry = entries[i];
             JarEntry outEntry = null;
             if (inEntry.getMethod() == JarEntry.STORED) {
                 // Preserve the STORED method of the input entry.
@@ -458,17 +555,23 @@ class SignApk {
             }
             else {
                 // Create a new entry so that the compressed len is recomputed.
-                outEntry = new JarEntry(name);
+                outEntry = new JarEntry(inEntry.getName());
             }
             outEntry.setTime(timestamp);
             out.putNextEntry(outEntry);
             
             InputStream data = in.getInputStream(inEntry);
-            while ((num = data.read(buffer)) > 0) {
-                out.write(buffer, 0, num);
+            try {
+                while ((num = data.read(buffer)) > 0) {
+                    digestOut.write(buffer, 0, num);
+                }
+            } finally {
+                data.close();
             }
+            digests[i] = md.digest();
             out.flush();
         }
+        return digests;
     }
     
     public static void main(String[] args) {
@@ -503,13 +606,15 @@ class SignApk {
             inputJar = new JarFile(new File(args[argstart + 2]), false); // Don't
                                                                          // verify.
             
-            OutputStream outputStream = null;
+            // The whole file signature is computed while the archive is
+            // written.
+            SignerInfoGenerator wholeFileSigner = null;
+            OutputStream outputStream = outputFile = new FileOutputStream(args[argstart + 3]);
             if (signWholeFile) {
-                outputStream = new ByteArrayOutputStream();
-            }
-            else {
-                outputStream = outputFile = new FileOutputStream(args[argstart + 3]);
+                wholeFileSigner = createWholeFileSigner(publicKey, privateKey);
+                outputStream = new WholeFileOutputStream(outputStream, wholeFileSigner.getCalculatingOutputStream());
             }
+            outputStream = new BufferedOutputStream(outputStream, 65536);
             outputJar = new JarOutputStream(outputStream);
             
             // For signing .apks, use the maximum compression to make
@@ -524,10 +629,10 @@ class SignApk {
             
             JarEntry je;
             
-            Manifest manifest = addDigestsToManifest(inputJar);
-            
-            // Everything else
-            copyFiles(manifest, inputJar, outputJar, timestamp);
+            // Everything else, digested while it is copied
+            JarEntry[] entries = getSignEntries(inputJar);
+            byte[][] digests = copyFiles(entries, inputJar, outputJar, timestamp);
+            Manifest manifest = addDigestsToManifest(inputJar, entries, digests);
             
             // otacert
             if (signWholeFile) {
@@ -557,12 +662,10 @@ class SignApk {
             
             outputJar.close();
             outputJar = null;
-            outputStream.flush();
+            outputFile = null;
             
             if (signWholeFile) {
-                outputFile = new FileOutputStream(args[argstart + 3]);
-                signWholeOutputFile(((ByteArrayOutputStream) outputStream).toByteArray(), outputFile, publicKey,
-                        privateKey);
+                signWholeOutputFile(new File(args[argstart + 3]), wholeFileSigner, publicKey);
             }
         } catch (Exception e) {
             e.printStackTrace();
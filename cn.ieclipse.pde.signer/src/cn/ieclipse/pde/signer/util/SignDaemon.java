@@ -0,0 +1,241 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.pde.signer.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signs archives for other processes of the same machine with a signer which
+ * is set up once, so a request costs only the signing itself. The daemon
+ * listens on the loopback interface, and a client must first send the token
+ * of the daemon, which is only known to those who may read its state file.
+ * <p>
+ * The protocol is made of UTF-8 lines. After the token, the client sends the
+ * archives as in a batch file of {@link SignTool}, one per line with absolute
+ * paths, then an empty line. The daemon signs them and answers a line per
+ * archive in the same order, <code>signed&lt;TAB&gt;time</code> or
+ * <code>failed&lt;TAB&gt;time&lt;TAB&gt;error</code>, then <code>end</code>.
+ * The client may send several requests on a connection. The line
+ * <code>shutdown</code> stops the daemon.
+ *
+ * @author Jamling
+ *         
+ */
+public final class SignDaemon {
+    private final BatchSigner signer;
+    private final String token;
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+    // The connections waiting for a request, closed when the daemon stops.
+    private final Set<Socket> idle = new HashSet<Socket>();
+    private ServerSocket server;
+    private volatile boolean stopped;
+    
+    /**
+     * @param signer
+     *            the key and the options, its parallelism should be 1
+     * @param threads
+     *            the number of archives of a request signed at once, 0 for the
+     *            number of processors
+     */
+    public SignDaemon(Signer signer, int threads) {
+        this.signer = new BatchSigner(signer, threads);
+        byte[] b = new byte[16];
+        new SecureRandom().nextBytes(b);
+        this.token = KeyTool.bin2hex(b);
+    }
+    
+    /** Get the token the clients must send first. */
+    public String getToken() {
+        return token;
+    }
+    
+    /**
+     * Listen on the loopback interface.
+     *
+     * @param port
+     *            the port, or 0 for any free port
+     * @return the port listened on
+     */
+    public int bind(int port) throws IOException {
+        server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        return server.getLocalPort();
+    }
+    
+    /**
+     * Serve the clients until the daemon is stopped, and return once the
+     * requests being served are finished.
+     */
+    public void serve() throws IOException {
+        try {
+            while (!stopped) {
+                final Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketException e) {
+                    if (stopped) {
+                        break;
+                    }
+                    throw e;
+                }
+                connections.execute(new Runnable() {
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            }
+        } finally {
+            connections.shutdown();
+            awaitConnections();
+        }
+    }
+    
+    /**
+     * Stop accepting clients, the requests being served are finished and the
+     * idle connections are closed.
+     */
+    public void stop() {
+        synchronized (idle) {
+            stopped = true;
+            for (Socket socket : idle) {
+                close(socket);
+            }
+            idle.clear();
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    private void awaitConnections() {
+        boolean interrupted = false;
+        while (!connections.isTerminated()) {
+            try {
+                connections.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // The requests are finished all the same.
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Mark a connection as waiting for a request or as serving one, return
+     * false if the daemon is stopped.
+     */
+    private boolean setIdle(Socket socket, boolean waiting) {
+        synchronized (idle) {
+            if (stopped) {
+                return false;
+            }
+            if (waiting) {
+                idle.add(socket);
+            }
+            else {
+                idle.remove(socket);
+            }
+            return true;
+        }
+    }
+    
+    private void handle(Socket socket) {
+        if (!setIdle(socket, true)) {
+            close(socket);
+            return;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            String line = in.readLine();
+            if (line == null || !MessageDigest.isEqual(token.getBytes("UTF-8"), line.trim().getBytes("UTF-8"))) {
+                out.write("error\tinvalid token\n");
+                out.flush();
+                return;
+            }
+            List<BatchSigner.Item> items = new ArrayList<BatchSigner.Item>();
+            while ((line = in.readLine()) != null) {
+                if (items.isEmpty() && !setIdle(socket, false)) {
+                    return;
+                }
+                line = line.trim();
+                if ("shutdown".equals(line)) {
+                    out.write("end\n");
+                    out.flush();
+                    stop();
+                    return;
+                }
+                if (line.length() > 0) {
+                    items.add(SignTool.parseItem(null, line, null));
+                    continue;
+                }
+                for (BatchSigner.Result result : signer.sign(items)) {
+                    if (result.isSuccess()) {
+                        out.write(String.format("signed\t%d\n", result.getTime()));
+                    }
+                    else {
+                        String error = String.valueOf(result.getError()).replaceAll("[\t\r\n]+", " ");
+                        out.write(String.format("failed\t%d\t%s\n", result.getTime(), error));
+                    }
+                }
+                out.write("end\n");
+                out.flush();
+                items.clear();
+                if (!setIdle(socket, true)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The client went away.
+        } finally {
+            synchronized (idle) {
+                idle.remove(socket);
+            }
+            close(socket);
+        }
+    }
+    
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,603 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.pde.signer.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Command line tool to sign archives without Eclipse, for build servers. The
+ * archives are given as paths, as globs on the file name (e.g. plugins/*.jar)
+ * or in batch files, and are signed in parallel. The progress is printed to
+ * the standard error, and a JSON summary of the results to the standard
+ * output. The exit code is 0 if all the archives were signed, 1 if some were
+ * not and 2 if the arguments are wrong.
+ * <p>
+ * A batch file holds an archive per line, either <code>input</code> or
+ * <code>input -&gt; output</code>. Empty lines and lines beginning with #
+ * are skipped, relative paths are relative to the batch file.
+ * <p>
+ * With -serve the key is loaded once and a {@link SignDaemon} signs the
+ * archives sent by <code>-connect</code> clients, which saves the start-up of
+ * the JVM, the provider and the keystore of each run. The state file, which
+ * only its owner may read, holds the port and the token of the daemon.
+ *
+ * @author Jamling
+ *         
+ */
+public final class SignTool {
+    private static final String USAGE = "Usage: signtool -keystore <file> -storepass <pass> -alias <alias>\n"
+            + "        [-keypass <pass>] [-certname <name>] [-out <dir>] [-batch <file>]...\n"
+            + "        [-threads <n>] [-digests sha1,sha256,sha512] [-v2] [-v3] [-v4] [-align <n>]\n"
+            + "        [-cache <file>] [-reuse verify|trust [-cosign]] [input|glob]...\n"
+            + "       signtool <key and options> [-port <n>] -serve <state file>\n"
+            + "       signtool -connect <state file> [-out <dir>] [-batch <file>]... [input|glob]...\n"
+            + "       signtool -connect <state file> -shutdown\n"
+            + "A password given as <name>:env is read from the environment variable <name>.\n"
+            + "Without -out the archives are replaced by the signed ones.\n"
+            + "With -reuse the manifest is kept and only the signature files are written, -cosign\n"
+            + "keeps the signatures of the other signers.";
+    
+    private static final long CACHE_SIZE = 64L << 20;
+    private static final String ARROW = " -> ";
+    
+    private String keystore;
+    private String storePass;
+    private String alias;
+    private String keyPass;
+    private String certName;
+    private File outDir;
+    private int threads;
+    private int digestAlgorithms = DigestSet.SHA256;
+    private boolean v2;
+    private boolean v3;
+    private boolean v4;
+    private int align;
+    private File cache;
+    private Signer.ManifestReuse reuse = Signer.ManifestReuse.NONE;
+    private boolean cosign;
+    private File serve;
+    private File connect;
+    private int port;
+    private boolean shutdown;
+    private final List<BatchSigner.Item> items = new ArrayList<BatchSigner.Item>();
+    
+    private SignTool() {
+    }
+    
+    public static void main(String[] args) {
+        SignTool tool = new SignTool();
+        try {
+            tool.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("signtool: " + e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        } catch (IOException e) {
+            System.err.println("signtool: " + e);
+            System.exit(2);
+        }
+        try {
+            if (tool.serve != null) {
+                System.exit(tool.serve());
+            }
+            System.exit(tool.connect != null ? tool.connect() : tool.run());
+        } catch (Exception e) {
+            System.err.println("signtool: " + e);
+            System.exit(2);
+        }
+    }
+    
+    private void parse(String[] args) throws IOException {
+        List<String> inputs = new ArrayList<String>();
+        List<File> batches = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("-")) {
+                inputs.add(arg);
+            }
+            else if ("-v2".equals(arg)) {
+                v2 = true;
+            }
+            else if ("-v3".equals(arg)) {
+                v3 = true;
+            }
+            else if ("-v4".equals(arg)) {
+                v4 = true;
+            }
+            else if ("-cosign".equals(arg)) {
+                cosign = true;
+            }
+            else if ("-shutdown".equals(arg)) {
+                shutdown = true;
+            }
+            else if (i + 1 == args.length) {
+                throw new IllegalArgumentException("missing value of " + arg);
+            }
+            else {
+                String value = args[++i];
+                if ("-keystore".equals(arg)) {
+                    keystore = value;
+                }
+                else if ("-storepass".equals(arg)) {
+                    storePass = getPassword(value);
+                }
+                else if ("-alias".equals(arg)) {
+                    alias = value;
+                }
+                else if ("-keypass".equals(arg)) {
+                    keyPass = getPassword(value);
+                }
+                else if ("-certname".equals(arg)) {
+                    certName = value;
+                }
+                else if ("-out".equals(arg)) {
+                    outDir = new File(value);
+                }
+                else if ("-batch".equals(arg)) {
+                    batches.add(new File(value));
+                }
+                else if ("-threads".equals(arg)) {
+                    threads = getInt(arg, value);
+                }
+                else if ("-digests".equals(arg)) {
+                    digestAlgorithms = getDigestAlgorithms(value);
+                }
+                else if ("-align".equals(arg)) {
+                    align = getInt(arg, value);
+                }
+                else if ("-cache".equals(arg)) {
+                    cache = new File(value);
+                }
+                else if ("-reuse".equals(arg)) {
+                    reuse = getManifestReuse(value);
+                }
+                else if ("-serve".equals(arg)) {
+                    serve = new File(value);
+                }
+                else if ("-connect".equals(arg)) {
+                    connect = new File(value);
+                }
+                else if ("-port".equals(arg)) {
+                    port = getInt(arg, value);
+                }
+                else {
+                    throw new IllegalArgumentException("unknown option " + arg);
+                }
+            }
+        }
+        if (connect == null && (keystore == null || storePass == null || alias == null)) {
+            throw new IllegalArgumentException("-keystore, -storepass and -alias are required");
+        }
+        for (String input : inputs) {
+            for (File file : expand(input)) {
+                items.add(new BatchSigner.Item(file, getOutput(file)));
+            }
+        }
+        for (File batch : batches) {
+            readBatch(batch);
+        }
+        if (items.isEmpty() && serve == null && !shutdown) {
+            throw new IllegalArgumentException("no input");
+        }
+        checkOutputs(items);
+        if (outDir != null && !outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("can't create the output directory " + outDir);
+        }
+    }
+    
+    /**
+     * Check that no two archives are signed to the same file, as the archives
+     * are signed at the same time.
+     */
+    private static void checkOutputs(List<BatchSigner.Item> items) throws IOException {
+        Map<File, File> inputs = new HashMap<File, File>();
+        for (BatchSigner.Item item : items) {
+            File output = item.getOutput() != null ? item.getOutput() : item.getInput();
+            File input = inputs.put(output.getCanonicalFile(), item.getInput());
+            if (input != null) {
+                throw new IllegalArgumentException(String.format("%s and %s are both signed to %s", input,
+                        item.getInput(), output));
+            }
+        }
+    }
+    
+    private int run() throws Exception {
+        int count = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        // A single archive is digested by all the threads, several archives
+        // are signed at once by a thread each.
+        Signer signer = createSigner(items.size() == 1 ? count : 1);
+        long start = System.currentTimeMillis();
+        List<BatchSigner.Result> results = new BatchSigner(signer, count).sign(items, new BatchSigner.Listener() {
+            
+            public void onSigned(BatchSigner.Result result, int done, int total) {
+                System.err.println(String.format("[%d/%d] %s", done, total, result));
+            }
+            
+            public boolean isCanceled() {
+                return false;
+            }
+        });
+        return printSummary(results, System.currentTimeMillis() - start);
+    }
+    
+    private int serve() throws Exception {
+        SignDaemon daemon = new SignDaemon(createSigner(1), threads);
+        int p = daemon.bind(port);
+        final File state = serve.getAbsoluteFile();
+        writeState(state, p + " " + daemon.getToken());
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                state.delete();
+            }
+        });
+        System.err.println("signtool: listening on 127.0.0.1:" + p);
+        daemon.serve();
+        return 0;
+    }
+    
+    private int connect() throws IOException {
+        String[] state = readState(connect).split(" ");
+        Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), getInt("-connect", state[0]));
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            out.write(state[1] + "\n");
+            if (shutdown) {
+                out.write("shutdown\n");
+                out.flush();
+                in.readLine();
+                return 0;
+            }
+            for (BatchSigner.Item item : items) {
+                File output = item.getOutput();
+                out.write(item.getInput().getAbsolutePath()
+                        + (output != null ? ARROW + output.getAbsolutePath() : "") + "\n");
+            }
+            out.write("\n");
+            out.flush();
+            
+            long start = System.currentTimeMillis();
+            List<BatchSigner.Result> results = new ArrayList<BatchSigner.Result>(items.size());
+            for (BatchSigner.Item item : items) {
+                String line = in.readLine();
+                if (line == null) {
+                    throw new IOException("connection closed by the daemon");
+                }
+                String[] parts = line.split("\t", 3);
+                if (parts.length < 2 || "error".equals(parts[0])) {
+                    throw new IOException(parts.length < 2 ? line : parts[1]);
+                }
+                Exception error = "failed".equals(parts[0]) ? new RemoteError(parts.length > 2 ? parts[2] : "") : null;
+                BatchSigner.Result result = new BatchSigner.Result(item, error, Long.parseLong(parts[1]));
+                results.add(result);
+                System.err.println(String.format("[%d/%d] %s", results.size(), items.size(), result));
+            }
+            in.readLine();
+            return printSummary(results, System.currentTimeMillis() - start);
+        } finally {
+            socket.close();
+        }
+    }
+    
+    private Signer createSigner(int parallelism) throws Exception {
+        KeyTool tool = new KeyTool(keystore, storePass);
+        X509Certificate publicKey = tool.getCertificate(alias);
+        if (publicKey == null) {
+            throw new IllegalArgumentException("no alias " + alias + " in " + keystore);
+        }
+        PrivateKey privateKey = tool.getPrivateKey(alias, keyPass != null ? keyPass : storePass);
+        return new Signer.Builder(publicKey, privateKey)
+                .setCertName(certName != null ? certName : JarSigner.getSignatureName(alias))
+                .setParallelism(parallelism).setDigestAlgorithms(digestAlgorithms).setApkSignatureV2(v2)
+                .setApkSignatureV3(v3).setApkSignatureV4(v4).setZipAlignment(align)
+                .setDigestCache(cache != null ? new DigestCache(cache, CACHE_SIZE) : null).setManifestReuse(reuse)
+                .setKeepSignatures(cosign).build();
+    }
+    
+    private static int printSummary(List<BatchSigner.Result> results, long time) {
+        int failed = 0;
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"total\":").append(results.size());
+        for (BatchSigner.Result result : results) {
+            if (!result.isSuccess()) {
+                failed++;
+            }
+        }
+        sb.append(",\"signed\":").append(results.size() - failed);
+        sb.append(",\"failed\":").append(failed);
+        sb.append(",\"time\":").append(time);
+        sb.append(",\"results\":[");
+        for (int i = 0; i < results.size(); i++) {
+            BatchSigner.Result result = results.get(i);
+            BatchSigner.Item item = result.getItem();
+            File output = item.getOutput() != null ? item.getOutput() : item.getInput();
+            sb.append(i == 0 ? "\n" : ",\n");
+            sb.append("{\"input\":").append(quote(item.getInput().getPath()));
+            sb.append(",\"output\":").append(quote(output.getPath()));
+            sb.append(",\"status\":").append(result.isSuccess() ? "\"signed\"" : "\"failed\"");
+            sb.append(",\"time\":").append(result.getTime());
+            if (!result.isSuccess()) {
+                sb.append(",\"error\":").append(quote(String.valueOf(result.getError())));
+            }
+            sb.append('}');
+        }
+        sb.append("]}");
+        System.out.println(sb);
+        return failed == 0 ? 0 : 1;
+    }
+    
+    private void readBatch(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                items.add(parseItem(dir, line, outDir));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+    
+    private File getOutput(File input) {
+        return outDir == null ? null : new File(outDir, input.getName());
+    }
+    
+    /**
+     * Parse a line of a batch file, <code>input</code> or
+     * <code>input -&gt; output</code>.
+     *
+     * @param dir
+     *            the directory of the relative paths, or null for the current
+     *            directory
+     * @param outDir
+     *            the directory of the output when the line has none, or null
+     *            to replace the input
+     */
+    static BatchSigner.Item parseItem(File dir, String line, File outDir) {
+        int arrow = line.indexOf(ARROW);
+        if (arrow < 0) {
+            File input = resolve(dir, line);
+            return new BatchSigner.Item(input, outDir == null ? null : new File(outDir, input.getName()));
+        }
+        return new BatchSigner.Item(resolve(dir, line.substring(0, arrow).trim()),
+                resolve(dir, line.substring(arrow + ARROW.length()).trim()));
+    }
+    
+    private static File resolve(File dir, String path) {
+        File file = new File(path);
+        return file.isAbsolute() || dir == null ? file : new File(dir, path);
+    }
+    
+    /**
+     * Write the state of the daemon to a file which only its owner may read.
+     * A file is created with the permissions of the umask, and another user
+     * who opened it before it is restricted could still read it. So it is
+     * created in a new directory which only the owner may enter, restricted,
+     * written and then renamed over <code>file</code>, which replaces a
+     * symbolic link rather than following it.
+     */
+    private static void writeState(File file, String state) throws IOException {
+        File dir = createPrivateDirectory(file.getAbsoluteFile().getParentFile());
+        File temp = new File(dir, file.getName());
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                setOwnerOnly(temp, false);
+                out.write(state.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            BcpSigner.replaceFile(temp, file);
+        } finally {
+            temp.delete();
+            dir.delete();
+        }
+    }
+    
+    private static File createPrivateDirectory(File parent) throws IOException {
+        for (int i = 0; i < 100; i++) {
+            File dir = new File(parent, ".signtool-" + Long.toHexString(System.nanoTime()) + ".tmp");
+            if (dir.mkdir()) {
+                setOwnerOnly(dir, true);
+                // Nothing can be added once it is restricted, but may have been
+                // before.
+                String[] files = dir.list();
+                if (files == null || files.length > 0) {
+                    throw new IOException("the temporary directory " + dir + " was tampered with");
+                }
+                return dir;
+            }
+        }
+        throw new IOException("can't create a temporary directory in " + parent);
+    }
+    
+    private static void setOwnerOnly(File file, boolean directory) {
+        file.setReadable(false, false);
+        file.setWritable(false, false);
+        file.setExecutable(false, false);
+        file.setReadable(true, true);
+        file.setWritable(true, true);
+        if (directory) {
+            file.setExecutable(true, true);
+        }
+    }
+    
+    private static String readState(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line = reader.readLine();
+            if (line == null || line.trim().split(" ").length != 2) {
+                throw new IOException("invalid state file " + file);
+            }
+            return line.trim();
+        } finally {
+            reader.close();
+        }
+    }
+    
+    /**
+     * Get the files matching a path whose file name may hold the * and ?
+     * wildcards, sorted by name.
+     */
+    private static List<File> expand(String path) {
+        File file = new File(path);
+        String name = file.getName();
+        if (name.indexOf('*') < 0 && name.indexOf('?') < 0) {
+            return Arrays.asList(file);
+        }
+        File dir = file.getParentFile() != null ? file.getParentFile() : new File(".");
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > start) {
+                    regex.append(Pattern.quote(name.substring(start, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < name.length()) {
+            regex.append(Pattern.quote(name.substring(start)));
+        }
+        Pattern pattern = Pattern.compile(regex.toString());
+        List<File> files = new ArrayList<File>();
+        String[] names = dir.list();
+        if (names != null) {
+            Arrays.sort(names);
+            for (String n : names) {
+                File f = new File(dir, n);
+                if (pattern.matcher(n).matches() && f.isFile()) {
+                    files.add(f);
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("no file matches " + path);
+        }
+        return files;
+    }
+    
+    private static String getPassword(String value) {
+        if (!value.endsWith(":env")) {
+            return value;
+        }
+        String name = value.substring(0, value.length() - 4);
+        String password = System.getenv(name);
+        if (password == null) {
+            throw new IllegalArgumentException("environment variable " + name + " is not set");
+        }
+        return password;
+    }
+    
+    private static int getInt(String option, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid value of " + option + ": " + value);
+        }
+    }
+    
+    private static int getDigestAlgorithms(String value) {
+        int algorithms = 0;
+        for (String name : value.split(",")) {
+            String n = name.trim().toLowerCase(Locale.ENGLISH).replace("-", "");
+            if ("sha1".equals(n)) {
+                algorithms |= DigestSet.SHA1;
+            }
+            else if ("sha256".equals(n)) {
+                algorithms |= DigestSet.SHA256;
+            }
+            else if ("sha512".equals(n)) {
+                algorithms |= DigestSet.SHA512;
+            }
+            else {
+                throw new IllegalArgumentException("unknown digest " + name);
+            }
+        }
+        return algorithms;
+    }
+    
+    private static Signer.ManifestReuse getManifestReuse(String value) {
+        if ("verify".equals(value)) {
+            return Signer.ManifestReuse.VERIFY;
+        }
+        if ("trust".equals(value)) {
+            return Signer.ManifestReuse.TRUST;
+        }
+        throw new IllegalArgumentException("-reuse is verify or trust: " + value);
+    }
+    
+    /**
+     * An error the daemon reported, only its message is known.
+     */
+    private static final class RemoteError extends Exception {
+        private static final long serialVersionUID = 1L;
+        
+        RemoteError(String message) {
+            super(message);
+        }
+        
+        @Override
+        public String toString() {
+            return getMessage();
+        }
+    }
+    
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
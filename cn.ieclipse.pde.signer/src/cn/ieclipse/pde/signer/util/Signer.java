@@ -0,0 +1,622 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.pde.signer.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.nio.channels.FileChannel;
+import java.security.cert.X509Certificate;
+import java.util.BitSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.jar.JarFile;
+import java.util.regex.Pattern;
+
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cms.SignerInfoGenerator;
+import org.bouncycastle.cms.SignerInfoGeneratorBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+/**
+ * Signs archives with one key and one set of options. A signer is immutable
+ * and may sign several archives at once from different threads; the builders
+ * of the signatures and the encoded certificate are set up once, what a
+ * signature needs while it is computed is created for each archive. All the
+ * signers share one provider. Use a {@link Builder} to create one.
+ *
+ * @author Jamling
+ *         
+ */
+public final class Signer {
+    private final X509Certificate publicKey;
+    private final PrivateKey privateKey;
+    private final String certName;
+    private final Pattern stripPattern;
+    private final int parallelism;
+    private final int digestAlgorithms;
+    private final boolean apkSignatureV2;
+    private final boolean apkSignatureV3;
+    private final boolean apkSignatureV4;
+    private final int zipAlignment;
+    private final DigestCache digestCache;
+    private final ManifestReuse manifestReuse;
+    private final boolean keepSignatures;
+    
+    private final X509CertificateHolder certificate;
+    private final ASN1Set certificates;
+    private final JcaContentSignerBuilder contentSignerBuilder;
+    private final JcaContentSignerBuilder wholeFileSignerBuilder;
+    private final DigestCalculatorProvider digestCalculatorProvider;
+    
+    private Signer(Builder builder) throws GeneralSecurityException {
+        this.publicKey = builder.publicKey;
+        this.privateKey = builder.privateKey;
+        this.certName = builder.certName;
+        this.stripPattern = builder.stripPattern;
+        this.parallelism = builder.parallelism;
+        this.digestAlgorithms = builder.digestAlgorithms;
+        this.apkSignatureV2 = builder.apkSignatureV2;
+        this.apkSignatureV3 = builder.apkSignatureV3;
+        this.apkSignatureV4 = builder.apkSignatureV4;
+        this.zipAlignment = builder.zipAlignment;
+        this.digestCache = builder.digestCache;
+        this.manifestReuse = builder.manifestReuse;
+        this.keepSignatures = builder.keepSignatures;
+        
+        Provider provider = ProviderHolder.PROVIDER;
+        this.contentSignerBuilder = new JcaContentSignerBuilder(DigestSet.getSignatureAlgorithm(digestAlgorithms))
+                .setProvider(provider);
+        // The whole file signature of OTA updates always uses SHA1.
+        this.wholeFileSignerBuilder = new JcaContentSignerBuilder("SHA1withRSA").setProvider(provider);
+        try {
+            this.digestCalculatorProvider = new JcaDigestCalculatorProviderBuilder().setProvider(provider).build();
+        } catch (OperatorCreationException e) {
+            throw new GeneralSecurityException(e.getMessage(), e);
+        }
+        this.certificate = new JcaX509CertificateHolder(publicKey);
+        this.certificates = new DERSet(certificate.toASN1Structure());
+    }
+    
+    public X509Certificate getCertificate() {
+        return publicKey;
+    }
+    
+    /**
+     * Sign an archive.
+     *
+     * @param input
+     *            the archive to sign
+     * @param output
+     *            the signed archive, or null to replace the input
+     */
+    public void sign(File input, File output) throws IOException, GeneralSecurityException {
+        sign(input, output, null);
+    }
+    
+    /**
+     * Sign an archive, telling <code>progress</code> how far it is. If the
+     * progress is canceled, a {@link CancellationException} is thrown. When
+     * signing fails the input is left as it was and the partial output is
+     * deleted.
+     *
+     * @param input
+     *            the archive to sign
+     * @param output
+     *            the signed archive, or null to replace the input
+     * @param progress
+     *            the progress, or null
+     */
+    public void sign(File input, File output, Progress progress) throws IOException, GeneralSecurityException {
+        ProgressTracker tracker = new ProgressTracker(progress);
+        File inputFile = input.getAbsoluteFile();
+        boolean replace = output == null || output.getAbsoluteFile().equals(inputFile);
+        if (manifestReuse != ManifestReuse.NONE) {
+            resign(inputFile, replace ? inputFile : output, tracker);
+            return;
+        }
+        
+        ZipArchive inputZip = null;
+        OutputStream fileOutput = null;
+        RawZipOutputStream outputJar = null;
+        File outputFile = null;
+        File tempFile = null;
+        File idsig = null;
+        ExecutorService chunkExecutor = null;
+        boolean done = false;
+        
+        try {
+            // Assume the certificate is valid for at least an hour.
+            long timestamp = publicKey.getNotBefore().getTime() + 3600L * 1000;
+            inputZip = new ZipArchive(inputFile);
+            
+            // When replacing the input, the signed archive is streamed to a
+            // temporary file in the same directory which is then renamed over
+            // the input.
+            if (replace) {
+                tempFile = File.createTempFile(inputFile.getName() + ".", ".tmp", inputFile.getParentFile());
+                outputFile = tempFile;
+            }
+            else {
+                outputFile = output;
+            }
+            boolean apk = apkSignatureV2 || apkSignatureV3;
+            if (apk) {
+                chunkExecutor = parallelism > 1 ? Executors.newFixedThreadPool(parallelism) : null;
+            }
+            // The whole file signature is computed while the archive is
+            // written.
+            SignerInfoGenerator wholeFileSigner = null;
+            VerityTree verityTree = null;
+            fileOutput = new FileOutputStream(outputFile);
+            OutputStream outputStream = fileOutput;
+            if (replace && !apk) {
+                wholeFileSigner = createSigner(wholeFileSignerBuilder);
+                outputStream = new BcpSigner.WholeFileOutputStream(outputStream,
+                        wholeFileSigner.getCalculatingOutputStream());
+            }
+            if (apkSignatureV4) {
+                verityTree = new VerityTree(chunkExecutor, parallelism);
+                outputStream = new BcpSigner.TeeOutputStream(outputStream, verityTree);
+            }
+            outputStream = new BufferedOutputStream(outputStream, 65536);
+            // The entries are copied without being deflated again, only the
+            // MANIFEST.MF and the signature files are compressed.
+            outputJar = new RawZipOutputStream(outputStream);
+            outputJar.setAlignment(zipAlignment);
+            // The chunks of the APK signature are digested while the entries
+            // are written.
+            ApkSigningBlock.ChunkDigester entriesDigester = null;
+            if (apk) {
+                entriesDigester = new ApkSigningBlock.ChunkDigester(chunkExecutor, parallelism);
+                outputJar.setObserver(entriesDigester);
+            }
+            
+            EntryTable table = new EntryTable(inputZip, BcpSigner.getSignEntries(inputZip, stripPattern),
+                    digestAlgorithms, BcpSigner.readManifest(inputZip), BcpSigner.CREATED);
+            BitSet cached = BcpSigner.readCachedDigests(digestCache, inputZip, table);
+            BitSet digested = (BitSet) cached.clone();
+            if (parallelism > 1 && table.size() - digested.cardinality() > 1) {
+                tracker.begin(Phase.DIGEST, getSize(inputZip, table, digested));
+                BcpSigner.digestParallel(inputZip, table, digested, parallelism, tracker);
+                digested.set(0, table.size());
+            }
+            
+            // Everything else, the entries are digested while they are copied
+            // unless they have been digested already.
+            tracker.begin(Phase.COPY, getSize(inputZip, table, null));
+            BcpSigner.copyFiles(table, digested, inputZip, outputJar, timestamp, tracker);
+            BcpSigner.writeCachedDigests(digestCache, inputZip, table, cached);
+            
+            // MANIFEST.MF
+            tracker.begin(Phase.SIGN, -1);
+            outputJar.putNextEntry(JarFile.MANIFEST_NAME, timestamp);
+            byte[] manifestDigest = table.writeManifest(outputJar);
+            
+            // CERT.SF
+            SignerInfoGenerator signer = createSigner(contentSignerBuilder);
+            outputJar.putNextEntry(String.format(BcpSigner.CERT_SF_FORMAT, certName), timestamp);
+            BcpSigner.writeSignatureFile(table, manifestDigest, outputJar, signer,
+                    apk ? ApkSigningBlock.getSignedAttribute(apkSignatureV2, apkSignatureV3) : null);
+            
+            // CERT.RSA
+            outputJar.putNextEntry(String.format(BcpSigner.CERT_RSA_FORMAT, certName), timestamp);
+            BcpSigner.writeSignatureBlock(signer, certificates, outputJar);
+            
+            // APK Signing Block, before the central directory
+            byte[] block = null;
+            byte[] apkDigest = null;
+            if (apk) {
+                outputJar.closeEntry();
+                apkDigest = ApkSigningBlock.digest(entriesDigester, outputJar);
+                block = ApkSigningBlock.create(apkDigest, publicKey, privateKey, apkSignatureV2, apkSignatureV3);
+            }
+            outputJar.finish(block);
+            outputJar.close();
+            outputJar = null;
+            
+            // APK Signature Scheme v4, next to the signed APK
+            if (apkSignatureV4) {
+                verityTree.build();
+                idsig = new File((replace ? inputFile : outputFile).getPath() + ".idsig");
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(idsig), 65536);
+                try {
+                    ApkSigningBlock.writeV4Signature(out, verityTree, apkDigest, publicKey, privateKey);
+                } finally {
+                    out.close();
+                }
+            }
+            
+            if (replace) {
+                if (wholeFileSigner != null) {
+                    BcpSigner.signWholeOutputFile(tempFile, wholeFileSigner, certificates);
+                }
+                tracker.checkCanceled();
+                inputZip.close();
+                inputZip = null;
+                BcpSigner.replaceFile(tempFile, inputFile);
+                tempFile = null;
+            }
+            done = true;
+        } finally {
+            try {
+                if (inputZip != null)
+                    inputZip.close();
+                // It is closed already unless signing failed, an unfinished
+                // archive needs no central directory.
+                if (fileOutput != null)
+                    fileOutput.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+            if (!done) {
+                if (!replace && fileOutput != null) {
+                    outputFile.delete();
+                }
+                if (idsig != null) {
+                    idsig.delete();
+                }
+            }
+            if (chunkExecutor != null) {
+                chunkExecutor.shutdownNow();
+            }
+        }
+    }
+    
+    /**
+     * Sign an archive with its manifest as it is, see {@link ManifestReuse}.
+     * The signature files are computed before the archive is touched, then
+     * the old signature files are removed and the new ones added in place.
+     */
+    private void resign(File inputFile, File outputFile, ProgressTracker tracker)
+            throws IOException, GeneralSecurityException {
+        long timestamp = publicKey.getNotBefore().getTime() + 3600L * 1000;
+        ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+        ByteArrayOutputStream signatureBlock = new ByteArrayOutputStream();
+        ZipArchive inputZip = new ZipArchive(inputFile);
+        try {
+            EntryTable table = new EntryTable(inputZip, BcpSigner.getSignEntries(inputZip, stripPattern),
+                    digestAlgorithms, BcpSigner.readManifest(inputZip), BcpSigner.CREATED);
+            byte[] manifestDigests = new byte[table.size() * table.getDigestLength()];
+            byte[] manifestDigest = table.readManifest(manifestDigests);
+            
+            // The digests to check the manifest against.
+            BitSet cached = BcpSigner.readCachedDigests(digestCache, inputZip, table);
+            BitSet digested = (BitSet) cached.clone();
+            if (manifestReuse == ManifestReuse.VERIFY) {
+                tracker.begin(Phase.DIGEST, getSize(inputZip, table, digested));
+                BcpSigner.digestParallel(inputZip, table, digested, parallelism, tracker);
+                digested.set(0, table.size());
+            }
+            int length = table.getDigestLength();
+            byte[] digests = table.getDigests();
+            for (int i = digested.nextSetBit(0); i >= 0; i = digested.nextSetBit(i + 1)) {
+                for (int k = i * length; k < (i + 1) * length; k++) {
+                    if (digests[k] != manifestDigests[k]) {
+                        throw new GeneralSecurityException("The manifest digest of " + table.getName(i)
+                                + " does not match");
+                    }
+                }
+            }
+            if (manifestReuse == ManifestReuse.VERIFY) {
+                BcpSigner.writeCachedDigests(digestCache, inputZip, table, cached);
+            }
+            
+            tracker.begin(Phase.SIGN, -1);
+            SignerInfoGenerator signer = createSigner(contentSignerBuilder);
+            BcpSigner.writeSignatureFile(table, manifestDigest, signatureFile, signer, null);
+            BcpSigner.writeSignatureBlock(signer, certificates, signatureBlock);
+        } finally {
+            inputZip.close();
+        }
+        
+        boolean replace = outputFile.getAbsoluteFile().equals(inputFile);
+        if (!replace) {
+            tracker.begin(Phase.COPY, inputFile.length());
+            copyFile(inputFile, outputFile);
+        }
+        tracker.checkCanceled();
+        // The signature files of this name are replaced, the others are kept
+        // or removed.
+        Pattern own = Pattern.compile("^META-INF/" + Pattern.quote(certName) + "[.](SF|RSA|DSA|EC)$");
+        ZipStripper stripper = null;
+        boolean done = false;
+        try {
+            stripper = new ZipStripper(outputFile);
+            if (keepSignatures || stripPattern == null) {
+                stripper.strip(own);
+            }
+            else {
+                stripper.strip(own, stripPattern);
+            }
+            RawZipOutputStream outputJar = stripper.getOutput();
+            outputJar.putNextEntry(String.format(BcpSigner.CERT_SF_FORMAT, certName), timestamp);
+            signatureFile.writeTo(outputJar);
+            outputJar.putNextEntry(String.format(BcpSigner.CERT_RSA_FORMAT, certName), timestamp);
+            signatureBlock.writeTo(outputJar);
+            stripper.finish();
+            done = true;
+        } finally {
+            if (stripper != null) {
+                stripper.close();
+            }
+            if (!done && !replace) {
+                outputFile.delete();
+            }
+        }
+    }
+    
+    private static void copyFile(File source, File target) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                FileChannel channel = in.getChannel();
+                long size = channel.size();
+                long position = 0;
+                while (position < size) {
+                    position += channel.transferTo(position, size - position, out.getChannel());
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Get the raw size of the entries of the table, but those set in
+     * <code>skip</code> unless it is null.
+     */
+    private static long getSize(ZipArchive zip, EntryTable table, BitSet skip) {
+        long size = 0;
+        for (int i = 0; i < table.size(); i++) {
+            if (skip == null || !skip.get(i)) {
+                size += zip.getCompressedSize(table.getIndex(i));
+            }
+        }
+        return size;
+    }
+    
+    /**
+     * Create the generator of a signature. The signed data must be written to
+     * its calculating output stream before the signature block is generated.
+     */
+    private SignerInfoGenerator createSigner(JcaContentSignerBuilder builder) throws GeneralSecurityException {
+        try {
+            return new SignerInfoGeneratorBuilder(digestCalculatorProvider).setDirectSignature(true)
+                    .build(builder.build(privateKey), certificate);
+        } catch (OperatorCreationException e) {
+            throw new GeneralSecurityException(e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * How the digests of the entries are obtained.
+     */
+    public enum ManifestReuse {
+        /**
+         * Digest every entry and write a new manifest, the signature files of
+         * the input are removed.
+         */
+        NONE,
+        /**
+         * Keep the manifest of the input, and sign its digests after checking
+         * them. The entries are digested unless their digests are in the
+         * {@link DigestCache}, and the digests are added to the cache, so an
+         * entry is only inflated the first time it is checked.
+         */
+        VERIFY,
+        /**
+         * Keep the manifest of the input, and sign its digests as they are.
+         * Only the entries whose name, CRC and sizes are in the
+         * {@link DigestCache} are checked, against the cached digests.
+         */
+        TRUST
+    }
+    
+    /**
+     * The phases of {@link Signer#sign(File, File, Progress)}, in order.
+     */
+    public enum Phase {
+        /** The entries are digested by several threads. */
+        DIGEST,
+        /** The entries are copied, and digested unless they were already. */
+        COPY,
+        /** The manifest and the signatures are written. */
+        SIGN
+    }
+    
+    /**
+     * Told how far an archive is signed. The bytes are counted in batches of
+     * about 1 MB, the methods may be called by any thread of the signer.
+     */
+    public interface Progress {
+        /**
+         * A phase begins.
+         *
+         * @param total
+         *            the number of bytes the phase digests or copies, or -1
+         */
+        void begin(Phase phase, long total);
+        
+        /**
+         * @param digested
+         *            the number of raw bytes of the entries digested so far
+         * @param written
+         *            the number of raw bytes of the entries copied so far
+         */
+        void update(long digested, long written);
+        
+        /**
+         * Tell whether to stop signing, asked at each phase and after each
+         * batch of bytes.
+         */
+        boolean isCanceled();
+    }
+    
+    /**
+     * Creating a provider takes longer than signing a small archive, so it is
+     * created once, when it is first needed.
+     */
+    private static final class ProviderHolder {
+        static final Provider PROVIDER = new BouncyCastleProvider();
+    }
+    
+    /**
+     * Collects the key and the options of a {@link Signer}. The defaults sign
+     * a JAR with SHA-256 digests, like {@link BcpSigner}.
+     */
+    public static final class Builder {
+        private final X509Certificate publicKey;
+        private final PrivateKey privateKey;
+        private String certName = "CERT";
+        private Pattern stripPattern = BcpSigner.DEFAULT_STRIP_PATTERN;
+        private int parallelism = 1;
+        private int digestAlgorithms = DigestSet.SHA256;
+        private boolean apkSignatureV2;
+        private boolean apkSignatureV3;
+        private boolean apkSignatureV4;
+        private int zipAlignment;
+        private DigestCache digestCache;
+        private ManifestReuse manifestReuse = ManifestReuse.NONE;
+        private boolean keepSignatures;
+        
+        public Builder(X509Certificate publicKey, PrivateKey privateKey) {
+            if (publicKey == null || privateKey == null) {
+                throw new IllegalArgumentException("no key");
+            }
+            this.publicKey = publicKey;
+            this.privateKey = privateKey;
+        }
+        
+        /**
+         * The name of the signature files, META-INF/&lt;certName&gt;.SF and
+         * .RSA.
+         */
+        public Builder setCertName(String certName) {
+            this.certName = certName;
+            return this;
+        }
+        
+        /** Files matching this pattern are not copied to the output. */
+        public Builder setStripPattern(Pattern stripPattern) {
+            this.stripPattern = stripPattern;
+            return this;
+        }
+        
+        /**
+         * Number of threads used to digest the entries before they are
+         * copied, and the chunks of the APK signatures.
+         */
+        public Builder setParallelism(int parallelism) {
+            this.parallelism = Math.max(1, parallelism);
+            return this;
+        }
+        
+        /** A combination of the {@link DigestSet} algorithms. */
+        public Builder setDigestAlgorithms(int digestAlgorithms) {
+            this.digestAlgorithms = digestAlgorithms;
+            return this;
+        }
+        
+        public Builder setApkSignatureV2(boolean apkSignatureV2) {
+            this.apkSignatureV2 = apkSignatureV2;
+            return this;
+        }
+        
+        public Builder setApkSignatureV3(boolean apkSignatureV3) {
+            this.apkSignatureV3 = apkSignatureV3;
+            return this;
+        }
+        
+        /** Write &lt;output&gt;.idsig, it needs the v2 or v3 signature. */
+        public Builder setApkSignatureV4(boolean apkSignatureV4) {
+            this.apkSignatureV4 = apkSignatureV4;
+            return this;
+        }
+        
+        /** 4 for APKs, 0 disables the alignment. */
+        public Builder setZipAlignment(int zipAlignment) {
+            this.zipAlignment = zipAlignment;
+            return this;
+        }
+        
+        public Builder setDigestCache(DigestCache digestCache) {
+            this.digestCache = digestCache;
+            return this;
+        }
+        
+        /**
+         * Keep the manifest of the input, so only the signature files are
+         * written. They are added to the archive in place, after the
+         * existing entries, or to a copy of it. The archive is broken if it
+         * can't be written then. The APK signatures, which cover the whole
+         * archive, and the whole file signature are not supported.
+         */
+        public Builder setManifestReuse(ManifestReuse manifestReuse) {
+            this.manifestReuse = manifestReuse;
+            return this;
+        }
+        
+        /**
+         * Keep the signature files of the other signers, to add a signer
+         * rather than replace them. It needs the manifest to be reused.
+         */
+        public Builder setKeepSignatures(boolean keepSignatures) {
+            this.keepSignatures = keepSignatures;
+            return this;
+        }
+        
+        public Signer build() throws GeneralSecurityException {
+            if (Utils.isEmpty(certName)) {
+                throw new IllegalArgumentException("no cert name");
+            }
+            if (apkSignatureV4 && !apkSignatureV2 && !apkSignatureV3) {
+                throw new GeneralSecurityException("APK Signature Scheme v4 needs the v2 or v3 signature");
+            }
+            if (manifestReuse != ManifestReuse.NONE && (apkSignatureV2 || apkSignatureV3 || zipAlignment > 0)) {
+                throw new IllegalArgumentException("the APK options need a new manifest");
+            }
+            if (keepSignatures && manifestReuse == ManifestReuse.NONE) {
+                throw new IllegalArgumentException("keeping the signatures needs the manifest to be reused");
+            }
+            if (DigestSet.getLength(digestAlgorithms) == 0) {
+                throw new IllegalArgumentException("no digest algorithm: " + digestAlgorithms);
+            }
+            return new Signer(this);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.pde.signer.util;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The fs-verity Merkle tree of the data written, as used by the APK Signature
+ * Scheme v4. The data is hashed by SHA-256 in blocks of 4 KB, the last one
+ * padded with zeros, and so are the hashes of each level until they fit in a
+ * single block. Each level is hashed by the workers in segments of 1 MB.
+ *
+ * @author Jamling
+ *         
+ */
+final class VerityTree extends SegmentDigester {
+    static final int BLOCK_SIZE = 4096;
+    static final int LOG2_BLOCK_SIZE = 12;
+    private static final int SEGMENT_SIZE = 256 * BLOCK_SIZE;
+    
+    private final ExecutorService executor;
+    private final int threads;
+    private byte[] tree;
+    private byte[] rootHash;
+    
+    /**
+     * @param executor
+     *            the workers, or null to hash the data in the calling thread
+     * @param threads
+     *            the number of workers
+     */
+    public VerityTree(ExecutorService executor, int threads) {
+        super(executor, threads, SEGMENT_SIZE);
+        this.executor = executor;
+        this.threads = threads;
+    }
+    
+    @Override
+    protected byte[] digest(byte[] data, int length) throws Exception {
+        int blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        Arrays.fill(data, length, blocks * BLOCK_SIZE, (byte) 0);
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        byte[] hashes = new byte[blocks * 32];
+        for (int i = 0; i < blocks; i++) {
+            md.update(data, i * BLOCK_SIZE, BLOCK_SIZE);
+            md.digest(hashes, i * 32, 32);
+        }
+        return hashes;
+    }
+    
+    /**
+     * Hash the levels above the data once everything has been written.
+     */
+    public void build() throws IOException {
+        List<byte[]> levels = new ArrayList<byte[]>();
+        byte[] level = pad(finish());
+        levels.add(level);
+        while (level.length > BLOCK_SIZE) {
+            VerityTree next = new VerityTree(executor, threads);
+            next.write(level, 0, level.length);
+            level = pad(next.finish());
+            levels.add(level);
+        }
+        int length = 0;
+        for (byte[] b : levels) {
+            length += b.length;
+        }
+        // The tree is stored from the top level down to the hashes of the
+        // data.
+        tree = new byte[length];
+        int pos = 0;
+        for (int i = levels.size() - 1; i >= 0; i--) {
+            byte[] b = levels.get(i);
+            System.arraycopy(b, 0, tree, pos, b.length);
+            pos += b.length;
+        }
+        try {
+            rootHash = MessageDigest.getInstance("SHA-256").digest(level);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+    }
+    
+    /** Get the levels of the tree, the top level first. */
+    public byte[] getTree() {
+        return tree;
+    }
+    
+    /** Get the hash of the top level. */
+    public byte[] getRootHash() {
+        return rootHash;
+    }
+    
+    private static byte[] pad(byte[] level) {
+        int length = Math.max(BLOCK_SIZE, (level.length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE);
+        return level.length == length ? level : Arrays.copyOf(level, length);
+    }
+}
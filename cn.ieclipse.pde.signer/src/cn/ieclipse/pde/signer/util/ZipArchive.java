@@ -0,0 +1,520 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.pde.signer.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Memory mapped zip archive reader. The central directory is parsed once into
+ * primitive arrays sorted by entry name, the names are kept as UTF-8 in a
+ * single array, and the entries are addressed by their index in that order.
+ * The raw (still compressed) data of the entries is handed out as slices of
+ * the mapping, so that they can be copied without being inflated and deflated
+ * again, and read by several threads at once.
+ *
+ * @author Jamling
+ *         
+ */
+final class ZipArchive {
+    static final int LOCAL_SIG = 0x04034b50;
+    static final int CENTRAL_SIG = 0x02014b50;
+    static final int EOCD_SIG = 0x06054b50;
+    static final int ZIP64_EOCD_SIG = 0x06064b50;
+    static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int EOCD_SIZE = 22;
+    static final int ZIP64_EXTRA_ID = 0x0001;
+    
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long length;
+    // The whole file when it can be mapped at once, or null.
+    private MappedByteBuffer mapped;
+    
+    private int count;
+    // UTF-8 names of all the entries, entry i is from nameOffsets[i] to
+    // nameOffsets[i + 1].
+    private byte[] names;
+    private int[] nameOffsets;
+    private short[] methods;
+    private int[] crcs;
+    private int[] times;
+    private long[] compressedSizes;
+    private long[] sizes;
+    private long[] offsets;
+    
+    public ZipArchive(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        try {
+            this.channel = this.file.getChannel();
+            this.length = channel.size();
+            if (length <= Integer.MAX_VALUE) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+            readCentralDirectory();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Get the number of entries.
+     */
+    public int size() {
+        return count;
+    }
+    
+    /**
+     * Get the index of the entry, or a negative value if there is no such
+     * entry.
+     */
+    public int indexOf(String name) {
+        byte[] key = getBytes(name);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compare(names, nameOffsets[mid], nameOffsets[mid + 1], key, 0, key.length);
+            if (c < 0) {
+                low = mid + 1;
+            }
+            else if (c > 0) {
+                high = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+    
+    public String getName(int index) {
+        return toString(names, nameOffsets[index], nameOffsets[index + 1] - nameOffsets[index]);
+    }
+    
+    /**
+     * Get the UTF-8 bytes of the name of the entry.
+     */
+    public byte[] getNameBytes(int index) {
+        return Arrays.copyOfRange(names, nameOffsets[index], nameOffsets[index + 1]);
+    }
+    
+    public boolean isDirectory(int index) {
+        int end = nameOffsets[index + 1];
+        return end > nameOffsets[index] && names[end - 1] == '/';
+    }
+    
+    public int getMethod(int index) {
+        return methods[index] & 0xffff;
+    }
+    
+    public long getCrc(int index) {
+        return crcs[index] & 0xffffffffL;
+    }
+    
+    /**
+     * Get the modification time of the entry, as {@link ZipEntry#getTime()}.
+     */
+    public long getTime(int index) {
+        return RawZipOutputStream.toJavaTime(times[index]);
+    }
+    
+    public long getCompressedSize(int index) {
+        return compressedSizes[index];
+    }
+    
+    public long getSize(int index) {
+        return sizes[index];
+    }
+    
+    /**
+     * Get the offset of the local header of the entry.
+     */
+    public long getLocalHeaderOffset(int index) {
+        return offsets[index];
+    }
+    
+    /**
+     * Get the raw data of the entry, the buffer has
+     * {@link #getCompressedSize(int)} bytes remaining. The buffer is not shared,
+     * so each thread may read its own buffers.
+     */
+    public ByteBuffer getRawData(int index) throws IOException {
+        long start = getDataOffset(index);
+        if (start + compressedSizes[index] > length || compressedSizes[index] > Integer.MAX_VALUE) {
+            throw new ZipException("invalid compressed size of " + getName(index));
+        }
+        return map(start, (int) compressedSizes[index]);
+    }
+    
+    /**
+     * Get the offset of the raw data of the entry, after its local header.
+     */
+    public long getDataOffset(int index) throws IOException {
+        long offset = offsets[index];
+        if (offset + LOCAL_HEADER_SIZE > length) {
+            throw new ZipException("invalid local header offset of " + getName(index));
+        }
+        ByteBuffer header = map(offset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_SIG) {
+            throw new ZipException("invalid local header for " + getName(index));
+        }
+        return offset + LOCAL_HEADER_SIZE + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+    }
+    
+    /**
+     * Open the uncompressed data of the entry.
+     */
+    public InputStream getInputStream(int index) throws IOException {
+        InputStream raw = new ByteBufferInputStream(getRawData(index));
+        switch (getMethod(index)) {
+            case ZipEntry.STORED:
+                return raw;
+            case ZipEntry.DEFLATED:
+                // The extra byte is the dummy byte needed in nowrap mode.
+                return new InflaterInputStream(new DummyByteInputStream(raw), new Inflater(true), 8192) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inf.end();
+                    }
+                };
+            default:
+                throw new ZipException("unsupported compression method " + getMethod(index) + " of " + getName(index));
+        }
+    }
+    
+    public void close() throws IOException {
+        if (mapped != null) {
+            unmap(mapped);
+            mapped = null;
+        }
+        file.close();
+    }
+    
+    private ByteBuffer map(long position, int size) throws IOException {
+        if (mapped != null) {
+            ByteBuffer b = mapped.duplicate();
+            b.position((int) position);
+            b.limit((int) position + size);
+            return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    private void readCentralDirectory() throws IOException {
+        if (length < EOCD_SIZE) {
+            throw new ZipException("zip file is too short");
+        }
+        // The EOCD is followed by a comment of at most 0xffff bytes.
+        int tail = (int) Math.min(length, EOCD_SIZE + 0xffff);
+        ByteBuffer buf = map(length - tail, tail);
+        int eocd = -1;
+        for (int i = tail - EOCD_SIZE; i >= 0; i--) {
+            if (buf.getInt(i) == EOCD_SIG && i + EOCD_SIZE + (buf.getShort(i + 20) & 0xffff) <= tail) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new ZipException("end of central directory not found");
+        }
+        long total = buf.getShort(eocd + 10) & 0xffff;
+        long cdSize = buf.getInt(eocd + 12) & 0xffffffffL;
+        long cdOffset = buf.getInt(eocd + 16) & 0xffffffffL;
+        
+        long eocdOffset = length - tail + eocd;
+        if (eocdOffset >= 20) {
+            ByteBuffer locator = map(eocdOffset - 20, 20);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIG) {
+                long zip64Offset = locator.getLong(8);
+                if (zip64Offset < 0 || zip64Offset + 56 > eocdOffset) {
+                    throw new ZipException("invalid zip64 end of central directory");
+                }
+                ByteBuffer zip64 = map(zip64Offset, 56);
+                if (zip64.getInt(0) != ZIP64_EOCD_SIG) {
+                    throw new ZipException("invalid zip64 end of central directory");
+                }
+                total = zip64.getLong(32);
+                cdSize = zip64.getLong(40);
+                cdOffset = zip64.getLong(48);
+            }
+        }
+        if (cdOffset < 0 || cdSize < 0 || cdOffset + cdSize > eocdOffset || cdSize > Integer.MAX_VALUE
+                || total > cdSize / CENTRAL_HEADER_SIZE) {
+            throw new ZipException("invalid central directory");
+        }
+        
+        count = (int) total;
+        names = new byte[(int) Math.min(cdSize - count * CENTRAL_HEADER_SIZE, Integer.MAX_VALUE)];
+        nameOffsets = new int[count + 1];
+        methods = new short[count];
+        crcs = new int[count];
+        times = new int[count];
+        compressedSizes = new long[count];
+        sizes = new long[count];
+        offsets = new long[count];
+        
+        ByteBuffer cd = map(cdOffset, (int) cdSize);
+        int pos = 0;
+        int namePos = 0;
+        for (int i = 0; i < count; i++) {
+            if (pos + CENTRAL_HEADER_SIZE > cdSize || cd.getInt(pos) != CENTRAL_SIG) {
+                throw new ZipException("invalid central directory header");
+            }
+            int nameLen = cd.getShort(pos + 28) & 0xffff;
+            int extraLen = cd.getShort(pos + 30) & 0xffff;
+            int commentLen = cd.getShort(pos + 32) & 0xffff;
+            if (pos + CENTRAL_HEADER_SIZE + nameLen + extraLen + commentLen > cdSize) {
+                throw new ZipException("invalid central directory header");
+            }
+            methods[i] = cd.getShort(pos + 10);
+            times[i] = cd.getInt(pos + 12);
+            crcs[i] = cd.getInt(pos + 16);
+            compressedSizes[i] = cd.getInt(pos + 20) & 0xffffffffL;
+            sizes[i] = cd.getInt(pos + 24) & 0xffffffffL;
+            offsets[i] = cd.getInt(pos + 42) & 0xffffffffL;
+            cd.position(pos + CENTRAL_HEADER_SIZE);
+            cd.get(names, namePos, nameLen);
+            nameOffsets[i] = namePos;
+            namePos += nameLen;
+            readZip64Extra(cd, pos + CENTRAL_HEADER_SIZE + nameLen, extraLen, i);
+            pos += CENTRAL_HEADER_SIZE + nameLen + extraLen + commentLen;
+        }
+        nameOffsets[count] = namePos;
+        sort();
+    }
+    
+    private void readZip64Extra(ByteBuffer b, int off, int len, int i) {
+        int end = off + len;
+        while (off + 4 <= end) {
+            int id = b.getShort(off) & 0xffff;
+            int size = b.getShort(off + 2) & 0xffff;
+            off += 4;
+            if (id == ZIP64_EXTRA_ID) {
+                int p = off;
+                int limit = Math.min(off + size, end);
+                if (sizes[i] == 0xffffffffL && p + 8 <= limit) {
+                    sizes[i] = b.getLong(p);
+                    p += 8;
+                }
+                if (compressedSizes[i] == 0xffffffffL && p + 8 <= limit) {
+                    compressedSizes[i] = b.getLong(p);
+                    p += 8;
+                }
+                if (offsets[i] == 0xffffffffL && p + 8 <= limit) {
+                    offsets[i] = b.getLong(p);
+                }
+                return;
+            }
+            off += size;
+        }
+    }
+    
+    /**
+     * Sort the entries by the bytes of their names, the first of several
+     * entries with the same name wins.
+     */
+    private void sort() {
+        final int[] starts = nameOffsets;
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer lhs, Integer rhs) {
+                int c = ZipArchive.compare(names, starts[lhs], starts[lhs + 1], names, starts[rhs], starts[rhs + 1]);
+                return c != 0 ? c : lhs.compareTo(rhs);
+            }
+        });
+        byte[] sortedNames = new byte[starts[count]];
+        int[] sortedNameOffsets = new int[count + 1];
+        short[] sortedMethods = new short[count];
+        int[] sortedCrcs = new int[count];
+        int[] sortedTimes = new int[count];
+        long[] sortedCompressedSizes = new long[count];
+        long[] sortedSizes = new long[count];
+        long[] sortedOffsets = new long[count];
+        int n = 0;
+        int namePos = 0;
+        for (int k = 0; k < count; k++) {
+            int i = order[k];
+            int start = starts[i];
+            int len = starts[i + 1] - start;
+            if (n > 0 && compare(sortedNames, sortedNameOffsets[n - 1], namePos, names, start, start + len) == 0) {
+                continue;
+            }
+            System.arraycopy(names, start, sortedNames, namePos, len);
+            sortedNameOffsets[n] = namePos;
+            namePos += len;
+            sortedMethods[n] = methods[i];
+            sortedCrcs[n] = crcs[i];
+            sortedTimes[n] = times[i];
+            sortedCompressedSizes[n] = compressedSizes[i];
+            sortedSizes[n] = sizes[i];
+            sortedOffsets[n] = offsets[i];
+            n++;
+        }
+        sortedNameOffsets[n] = namePos;
+        count = n;
+        names = sortedNames;
+        nameOffsets = sortedNameOffsets;
+        methods = sortedMethods;
+        crcs = sortedCrcs;
+        times = sortedTimes;
+        compressedSizes = sortedCompressedSizes;
+        sizes = sortedSizes;
+        offsets = sortedOffsets;
+    }
+    
+    /**
+     * Compare two byte ranges as unsigned bytes, which is the order of the
+     * code points for UTF-8 strings.
+     */
+    static int compare(byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd) {
+        int len = Math.min(aEnd - aStart, bEnd - bStart);
+        for (int i = 0; i < len; i++) {
+            int c = (a[aStart + i] & 0xff) - (b[bStart + i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return (aEnd - aStart) - (bEnd - bStart);
+    }
+    
+    static byte[] getBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    static String toString(byte[] b, int off, int len) {
+        try {
+            return new String(b, off, len, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Release the mapping now instead of waiting for the garbage collector, a
+     * mapped file can't be replaced on Windows. The buffer must not be used
+     * any more.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(f.get(null), buffer);
+            return;
+        } catch (Throwable e) {
+            // try the older way
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Throwable e) {
+            // leave it to the garbage collector
+        }
+    }
+    
+    /**
+     * Read the remaining bytes of a buffer.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+        
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+        
+        @Override
+        public int available() throws IOException {
+            return buffer.remaining();
+        }
+    }
+    
+    /**
+     * Append one dummy byte to a stream.
+     */
+    private static class DummyByteInputStream extends InputStream {
+        private final InputStream in;
+        private boolean eof;
+        
+        public DummyByteInputStream(InputStream in) {
+            this.in = in;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int num = in.read(b, off, len);
+            if (num < 0 && !eof && len > 0) {
+                eof = true;
+                b[off] = 0;
+                return 1;
+            }
+            return num;
+        }
+    }
+}
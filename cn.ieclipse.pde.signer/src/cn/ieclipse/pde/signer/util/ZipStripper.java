@@ -0,0 +1,344 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.pde.signer.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.regex.Pattern;
+import java.util.zip.ZipException;
+
+/**
+ * Removes entries from a zip archive in place, and adds entries to it. The
+ * entries are found through the central directory, the entries which follow
+ * the first removed one are moved down over the removed ones as they are, and
+ * the entries added and a new central directory are written after them.
+ * Nothing is inflated or deflated, and only the tail of the archive from the
+ * first removed entry is moved, so removing the signature files, which
+ * {@link Signer} writes last, takes no longer than rewriting the central
+ * directory.
+ * <p>
+ * An APK Signing Block and an archive comment are removed too, as their
+ * signatures no longer match. The archive is broken if it fails half way.
+ *
+ * @author Jamling
+ *         
+ */
+final class ZipStripper {
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    private static final int BUFFER_SIZE = 65536;
+    
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private RawZipOutputStream output;
+    
+    ZipStripper(File archive) throws IOException {
+        this.file = new RandomAccessFile(archive, "rw");
+        this.channel = file.getChannel();
+    }
+    
+    /**
+     * Remove the entries whose name matches one of the patterns.
+     *
+     * @return the number of entries removed
+     */
+    static int strip(File archive, Pattern... patterns) throws IOException {
+        ZipStripper stripper = new ZipStripper(archive);
+        try {
+            int removed = stripper.strip(patterns);
+            if (removed > 0) {
+                stripper.finish();
+            }
+            return removed;
+        } finally {
+            stripper.close();
+        }
+    }
+    
+    /**
+     * Get the stream which adds entries after those of the archive, once
+     * {@link #strip(Pattern...)} has been called.
+     */
+    RawZipOutputStream getOutput() {
+        return output;
+    }
+    
+    /**
+     * Write the central directory, and cut the file after it.
+     */
+    void finish() throws IOException {
+        output.finish();
+        channel.truncate(output.getOffset());
+    }
+    
+    void close() throws IOException {
+        file.close();
+    }
+    
+    /**
+     * Remove the entries whose name matches one of the patterns. The central
+     * directory is not written before {@link #finish()}.
+     *
+     * @return the number of entries removed
+     */
+    int strip(Pattern... patterns) throws IOException {
+        long length = channel.size();
+        if (length < ZipArchive.EOCD_SIZE) {
+            throw new ZipException("zip file is too short");
+        }
+        // The EOCD is followed by a comment of at most 0xffff bytes.
+        int tail = (int) Math.min(length, ZipArchive.EOCD_SIZE + 0xffff);
+        ByteBuffer buf = read(channel, length - tail, tail);
+        int eocd = -1;
+        for (int i = tail - ZipArchive.EOCD_SIZE; i >= 0; i--) {
+            if (buf.getInt(i) == ZipArchive.EOCD_SIG
+                    && i + ZipArchive.EOCD_SIZE + (buf.getShort(i + 20) & 0xffff) <= tail) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new ZipException("end of central directory not found");
+        }
+        long total = buf.getShort(eocd + 10) & 0xffff;
+        long cdSize = buf.getInt(eocd + 12) & 0xffffffffL;
+        long cdOffset = buf.getInt(eocd + 16) & 0xffffffffL;
+        
+        long eocdOffset = length - tail + eocd;
+        if (eocdOffset >= 20) {
+            ByteBuffer locator = read(channel, eocdOffset - 20, 20);
+            if (locator.getInt(0) == ZipArchive.ZIP64_LOCATOR_SIG) {
+                long zip64Offset = locator.getLong(8);
+                if (zip64Offset < 0 || zip64Offset + 56 > eocdOffset) {
+                    throw new ZipException("invalid zip64 end of central directory");
+                }
+                ByteBuffer zip64 = read(channel, zip64Offset, 56);
+                if (zip64.getInt(0) != ZipArchive.ZIP64_EOCD_SIG) {
+                    throw new ZipException("invalid zip64 end of central directory");
+                }
+                total = zip64.getLong(32);
+                cdSize = zip64.getLong(40);
+                cdOffset = zip64.getLong(48);
+            }
+        }
+        if (cdOffset < 0 || cdSize < 0 || cdOffset + cdSize > eocdOffset || cdSize > Integer.MAX_VALUE
+                || total > cdSize / ZipArchive.CENTRAL_HEADER_SIZE) {
+            throw new ZipException("invalid central directory");
+        }
+        
+        // The central directory headers, in the order of the central
+        // directory, and where the offset of their local header is.
+        int count = (int) total;
+        ByteBuffer cd = read(channel, cdOffset, (int) cdSize);
+        int[] starts = new int[count + 1];
+        int[] offsetFields = new int[count];
+        final long[] offsets = new long[count];
+        boolean[] removed = new boolean[count];
+        int removedCount = 0;
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            if (pos + ZipArchive.CENTRAL_HEADER_SIZE > cdSize || cd.getInt(pos) != ZipArchive.CENTRAL_SIG) {
+                throw new ZipException("invalid central directory header");
+            }
+            int nameLen = cd.getShort(pos + 28) & 0xffff;
+            int extraLen = cd.getShort(pos + 30) & 0xffff;
+            int commentLen = cd.getShort(pos + 32) & 0xffff;
+            int end = pos + ZipArchive.CENTRAL_HEADER_SIZE + nameLen + extraLen + commentLen;
+            if (end > cdSize) {
+                throw new ZipException("invalid central directory header");
+            }
+            starts[i] = pos;
+            offsetFields[i] = pos + 42;
+            offsets[i] = cd.getInt(pos + 42) & 0xffffffffL;
+            if (offsets[i] == ZIP64_MAGIC) {
+                offsetFields[i] = getZip64OffsetField(cd, pos, nameLen, extraLen);
+                offsets[i] = cd.getLong(offsetFields[i]);
+            }
+            byte[] name = new byte[nameLen];
+            cd.position(pos + ZipArchive.CENTRAL_HEADER_SIZE);
+            cd.get(name);
+            String entry = ZipArchive.toString(name, 0, nameLen);
+            for (Pattern pattern : patterns) {
+                if (!removed[i] && pattern.matcher(entry).matches()) {
+                    removed[i] = true;
+                    removedCount++;
+                }
+            }
+            pos = end;
+        }
+        starts[count] = pos;
+        
+        // The entries end where the next one begins, so their data descriptors
+        // are kept, the last one where the APK Signing Block or the central
+        // directory begins.
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer lhs, Integer rhs) {
+                long l = offsets[lhs];
+                long r = offsets[rhs];
+                return l < r ? -1 : (l == r ? lhs.compareTo(rhs) : 1);
+            }
+        });
+        long dataEnd = getSigningBlockOffset(channel, cdOffset);
+        int first = 0;
+        while (first < count && !removed[order[first]]) {
+            first++;
+        }
+        long position = first < count ? offsets[order[first]] : dataEnd;
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        for (int k = first; k < count; k++) {
+            int i = order[k];
+            long start = offsets[i];
+            long end = k + 1 < count ? offsets[order[k + 1]] : dataEnd;
+            if (start > end || end > dataEnd) {
+                throw new ZipException("invalid local header offset");
+            }
+            if (removed[i]) {
+                continue;
+            }
+            move(channel, start, end - start, position, buffer);
+            offsets[i] = position;
+            position += end - start;
+        }
+        
+        // The central directory of the entries kept, which the moved entries
+        // have not reached.
+        ByteBuffer newCd = ByteBuffer.allocate(pos).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < count; i++) {
+            if (removed[i]) {
+                continue;
+            }
+            int start = newCd.position();
+            cd.limit(starts[i + 1]).position(starts[i]);
+            newCd.put(cd);
+            cd.limit(cd.capacity());
+            int field = start + offsetFields[i] - starts[i];
+            if (offsetFields[i] == starts[i] + 42) {
+                newCd.putInt(field, (int) offsets[i]);
+            }
+            else {
+                newCd.putLong(field, offsets[i]);
+            }
+        }
+        output = new RawZipOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel.position(position)),
+                BUFFER_SIZE), position, newCd.array(), newCd.position(), count - removedCount);
+        return removedCount;
+    }
+    
+    /**
+     * Get where the zip64 extra field of a central directory header keeps the
+     * offset of the local header.
+     */
+    private static int getZip64OffsetField(ByteBuffer cd, int pos, int nameLen, int extraLen) throws ZipException {
+        int off = pos + ZipArchive.CENTRAL_HEADER_SIZE + nameLen;
+        int end = off + extraLen;
+        while (off + 4 <= end) {
+            int id = cd.getShort(off) & 0xffff;
+            int size = cd.getShort(off + 2) & 0xffff;
+            off += 4;
+            if (id == ZipArchive.ZIP64_EXTRA_ID) {
+                // The sizes come first if they do not fit either.
+                int p = off;
+                if ((cd.getInt(pos + 24) & 0xffffffffL) == ZIP64_MAGIC) {
+                    p += 8;
+                }
+                if ((cd.getInt(pos + 20) & 0xffffffffL) == ZIP64_MAGIC) {
+                    p += 8;
+                }
+                if (p + 8 > Math.min(off + size, end)) {
+                    break;
+                }
+                return p;
+            }
+            off += size;
+        }
+        throw new ZipException("invalid zip64 extra field");
+    }
+    
+    /**
+     * Get where the APK Signing Block before the central directory begins, or
+     * the central directory if there is none.
+     */
+    private static long getSigningBlockOffset(FileChannel channel, long cdOffset) throws IOException {
+        byte[] magic = ApkSigningBlock.MAGIC;
+        if (cdOffset < 24 + magic.length) {
+            return cdOffset;
+        }
+        ByteBuffer footer = read(channel, cdOffset - 8 - magic.length, 8 + magic.length);
+        for (int i = 0; i < magic.length; i++) {
+            if (footer.get(8 + i) != magic[i]) {
+                return cdOffset;
+            }
+        }
+        long start = cdOffset - footer.getLong(0) - 8;
+        if (start < 0 || start > cdOffset - 24 - magic.length) {
+            throw new ZipException("invalid APK Signing Block");
+        }
+        return start;
+    }
+    
+    /**
+     * Move bytes towards the start of the file, the source is read ahead of
+     * the target, so overlapping ranges are moved right.
+     */
+    private static void move(FileChannel channel, long from, long size, long to, ByteBuffer buffer)
+            throws IOException {
+        if (from == to) {
+            return;
+        }
+        long done = 0;
+        while (done < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - done));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, from + done + buffer.position()) < 0) {
+                    throw new ZipException("unexpected end of zip file");
+                }
+            }
+            buffer.flip();
+            int n = buffer.remaining();
+            write(channel, buffer, to + done);
+            done += n;
+        }
+    }
+    
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (b.hasRemaining()) {
+            if (channel.read(b, position + b.position()) < 0) {
+                throw new ZipException("unexpected end of zip file");
+            }
+        }
+        b.flip();
+        return b;
+    }
+    
+    private static void write(FileChannel channel, ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining()) {
+            channel.write(b, position + b.position());
+        }
+    }
+}
@@ -16,20 +16,20 @@
 package cn.ieclipse.pde.signer.wizard;
 
 import java.io.File;
-import java.lang.reflect.InvocationTargetException;
+import java.security.GeneralSecurityException;
+import java.util.List;
 
-import org.eclipse.core.runtime.IProgressMonitor;
-import org.eclipse.jface.operation.IRunnableWithProgress;
+import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.jface.wizard.Wizard;
+import org.eclipse.swt.widgets.Shell;
 
+import cn.ieclipse.pde.signer.util.BatchSigner;
 import cn.ieclipse.pde.signer.util.BcpSigner;
-import cn.ieclipse.pde.signer.util.JarSigner;
-import cn.ieclipse.pde.signer.util.KeyTool;
-import cn.ieclipse.pde.signer.util.ProcessUtil;
+import cn.ieclipse.pde.signer.util.Signer;
 
 /**
  * Common sign wizard, provide PCBSigner
- * 
+ *
  * @author Jamling
  *         
  */
@@ -48,50 +48,75 @@ public abstract class CommonSignWizard extends Wizard {
         page1.initConf(cfgFile);
     }
     
+    /**
+     * Read the archives to sign and the key from the pages, then sign them in
+     * a background job, the wizard is closed at once.
+     */
     @Override
     public boolean performFinish() {
+        final List<BatchSigner.Item> items = getItems();
+        Signer signer;
         try {
-            IRunnableWithProgress runnable = new IRunnableWithProgress() {
-                
-                public void run(IProgressMonitor monitor) throws InvocationTargetException, InterruptedException {
-                    sign(monitor);
-                }
-            };
-            getContainer().run(false, true, runnable);
-            return true;
-        } catch (Exception e) {
+            signer = createSigner(items.size() > 1);
+        } catch (GeneralSecurityException e) {
             e.printStackTrace();
+            page1.setErrorMessage(e.toString());
             return false;
         }
+        SignJob job = new SignJob(getWindowTitle(), signer, items) {
+            
+            @Override
+            protected void signed(Shell shell, List<BatchSigner.Result> results, boolean canceled) {
+                if (canceled) {
+                    int done = 0;
+                    for (BatchSigner.Result result : results) {
+                        if (result.isSuccess()) {
+                            done++;
+                        }
+                    }
+                    MessageDialog.openInformation(shell, "Sign Canceled",
+                            String.format("Sign canceled, %d of %d package(s) have been signed", done, results.size()));
+                }
+                else {
+                    CommonSignWizard.this.signed(shell, results);
+                }
+            }
+        };
+        job.schedule();
+        return true;
     }
     
-    protected abstract void sign(IProgressMonitor monitor);
+    /**
+     * Get the archives to sign, called in the UI thread when the wizard is
+     * finished.
+     */
+    protected abstract List<BatchSigner.Item> getItems();
     
-    protected String pcbSign(String input, String output, String cert) {
-        String alias = page1.getAlias();
-        String msg = BcpSigner.sign(page1.getPubKey(), page1.getPrivateKey(), input, output,
-                cert == null ? alias.toUpperCase() : cert);
-        return msg;
+    /**
+     * Tell the user how the signing went, called in the UI thread once it is
+     * done, unless it was canceled. The pages have been disposed.
+     *
+     * @param shell
+     *            the parent shell, or null
+     * @param results
+     *            the result of each item, in the order of the items
+     */
+    protected abstract void signed(Shell shell, List<BatchSigner.Result> results);
+    
+    /**
+     * Get the name of the .SF and .RSA files.
+     */
+    protected String getCertName() {
+        return page1.getAlias().toUpperCase();
     }
     
-    protected void jarSign(String input, String output, String cert) throws Exception {
-        KeyTool tool = page1.getKeyTool();
-        String alias = page1.getAlias();
-        String pwd = page1.getAliasPass();
-        boolean ret = JarSigner.sign(input, output, tool.getStoreFile(), tool.getStorePass(), alias, pwd,
-                new ProcessUtil.Callback() {
-                    
-                    public void onError(String msg) {
-                        System.out.println("error:" + msg);
-                        page1.setErrorMessage(msg);
-                    }
-                    
-                    public void onCompleted(String msg) {
-                        System.out.println("output:" + msg);
-                        page1.setErrorMessage(msg);
-                    }
-                });
-        System.out.println("sign ? " + ret);
+    private Signer createSigner(boolean batch) throws GeneralSecurityException {
+        Signer.Builder builder = BcpSigner.newBuilder(page1.getPubKey(), page1.getPrivateKey(), getCertName());
+        if (batch) {
+            // The archives are signed in parallel, not their entries.
+            builder.setParallelism(1);
+        }
+        return builder.build();
     }
     
     @Override
@@ -15,8 +15,11 @@
  */
 package cn.ieclipse.pde.signer.wizard;
 
-import java.util.ArrayList;
+import java.util.Locale;
 
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.x500.X500NameBuilder;
+import org.bouncycastle.asn1.x500.style.BCStyle;
 import org.eclipse.jface.dialogs.IDialogConstants;
 import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.jface.dialogs.TitleAreaDialog;
@@ -30,7 +33,7 @@ import org.eclipse.swt.widgets.FileDialog;
 import org.eclipse.swt.widgets.Shell;
 
 import cn.ieclipse.pde.signer.util.KeyTool;
-import cn.ieclipse.pde.signer.util.ProcessUtil;
+import cn.ieclipse.pde.signer.util.Utils;
 
 /**
  * Key entry manage dialog.
@@ -143,60 +146,46 @@ public class KeyAliasDialog extends TitleAreaDialog {
     }
     
     private boolean genKey() {
-        ArrayList<String> aa = new ArrayList<String>();
-        aa.add("-genkey");
-        aa.add("-keystore");
-        aa.add(String.format("\"%s\"", tool.getStoreFile()));
-        aa.add("-storepass");
-        aa.add(String.format("\"%s\"", tool.getStorePass()));
-        aa.add("-validity");
-        aa.add(String.valueOf(item.getValidity()));
-        aa.add("-alias");
-        aa.add(String.format("\"%s\"", item.getAlias()));
-        aa.add("-keypass");
-        aa.add(String.format("\"%s\"", item.getPassword()));
-        aa.add("-keyalg");
-        aa.add("RSA");
-        aa.add("-dname");
-        aa.add(String.format("\"%s\"", item.getIssuer()));
-        Process p = ProcessUtil.exec(getKeyToolPath(), aa);
-        if (p != null) {
-            try {
-                ProcessUtil.dumpProcess(p, "gbk");
-                System.out.println(p.exitValue());
-                tool = new KeyTool(tool.getStoreFile(), tool.getStorePass());
-                if (tool.getAliases().contains(item.getAlias().toLowerCase())) {
-                    return true;
-                }
-            } catch (Exception e) {
-            
-            }
+        // Added in the order keytool encodes them, the country first.
+        X500NameBuilder builder = new X500NameBuilder(BCStyle.INSTANCE);
+        addRDN(builder, BCStyle.C, item.getC());
+        addRDN(builder, BCStyle.ST, item.getS());
+        addRDN(builder, BCStyle.L, item.getL());
+        addRDN(builder, BCStyle.O, item.getO());
+        addRDN(builder, BCStyle.OU, item.getOu());
+        addRDN(builder, BCStyle.CN, Utils.isEmpty(item.getCn()) ? item.getAlias() : item.getCn());
+        try {
+            tool.genKeyPair(item.getAlias(), item.getPassword(), builder.build(), item.getValidity());
+            tool.save(tool.getStoreFile(), tool.getStorePass());
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            setErrorMessage(e.getMessage());
         }
         return false;
     }
     
+    private static void addRDN(X500NameBuilder builder, ASN1ObjectIdentifier oid, String value) {
+        if (!Utils.isEmpty(value)) {
+            builder.addRDN(oid, value.trim());
+        }
+    }
+    
     private boolean exportKey() {
         FileDialog dialog = new FileDialog(getShell(), SWT.SAVE);
         dialog.setFileName(item.getAlias());
-        dialog.setFilterExtensions(new String[] { "*.cer", "*.*" });
+        dialog.setFilterExtensions(new String[] { "*.cer", "*.pem", "*.*" });
         String path = dialog.open();
         if (path != null) {
-            ArrayList<String> aa = new ArrayList<String>();
-            aa.add("-exportcert");
-            aa.add("-keystore");
-            aa.add(String.format("\"%s\"", tool.getStoreFile()));
-            aa.add("-storepass");
-            aa.add(String.format("\"%s\"", tool.getStorePass()));
-            aa.add("-alias");
-            aa.add(String.format("\"%s\"", item.getAlias()));
-            aa.add("-file");
-            aa.add(String.format("\"%s\"", path));
-            Process p = ProcessUtil.exec(getKeyToolPath(), aa);
-            if (p != null) {
-                ProcessUtil.dumpProcess(p, "gbk");
-                if (p.exitValue() == 0) {
-                    MessageDialog.openConfirm(getShell(), "Export Successfully!", "Export Successfully!");
-                }
+            // .pem files are Base64 encoded, the others DER encoded.
+            boolean pem = path.toLowerCase(Locale.ENGLISH).endsWith(".pem");
+            try {
+                tool.exportCertificate(item.getAlias(), path, pem);
+                MessageDialog.openConfirm(getShell(), "Export Successfully!", "Export Successfully!");
+                return true;
+            } catch (Exception e) {
+                e.printStackTrace();
+                MessageDialog.openError(getShell(), "Error", String.format("Error while export, error : %s", e));
             }
         }
         return false;
@@ -213,28 +202,6 @@ public class KeyAliasDialog extends TitleAreaDialog {
         return false;
     }
     
-    public static String getKeyToolPath() {
-        String path = System.getenv("java_home");
-        if (path == null) {
-            path = System.getProperty("java.home");
-            // if (path != null) {
-            // File f = new File(path);
-            // while (f.getParentFile() != null) {
-            // System.out.println(f);
-            // if (new File(f, "bin/keytool.exe").exists()) {
-            // path = f.getAbsolutePath();
-            // break;
-            // }
-            // f = f.getParentFile();
-            // }
-            // }
-        }
-        if (path != null) {
-            path = "keytool";
-        }
-        return path;
-    }
-    
     /**
      * Return the initial size of the dialog.
      */
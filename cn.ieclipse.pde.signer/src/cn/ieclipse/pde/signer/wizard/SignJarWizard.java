@@ -15,15 +15,21 @@
  */
 package cn.ieclipse.pde.signer.wizard;
 
-import org.eclipse.core.runtime.IProgressMonitor;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
 import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.swt.widgets.Shell;
 
 import cn.ieclipse.pde.explorer.Explorer;
 import cn.ieclipse.pde.explorer.ExplorerPlugin;
+import cn.ieclipse.pde.signer.util.BatchSigner;
+import cn.ieclipse.pde.signer.util.Utils;
 
 /**
  * Sign jar wizard.
- * 
+ *
  * @author Jamling
  *         
  */
@@ -51,25 +57,33 @@ public class SignJarWizard extends CommonSignWizard {
     }
     
     @Override
-    protected void sign(IProgressMonitor monitor) {
-        String input = page0.getSourcePackage();
+    protected List<BatchSigner.Item> getItems() {
+        File input = new File(page0.getSourcePackage());
         String output = page0.getDestPackage();
-        String msg = super.pcbSign(input, output, null);
-        if (msg == null) {
-            boolean confirm = MessageDialog.openConfirm(getShell(),
+        BatchSigner.Item item = new BatchSigner.Item(input, Utils.isEmpty(output) ? null : new File(output));
+        return Collections.singletonList(item);
+    }
+    
+    @Override
+    protected void signed(Shell shell, List<BatchSigner.Result> results) {
+        BatchSigner.Result result = results.get(0);
+        BatchSigner.Item item = result.getItem();
+        if (result.isSuccess()) {
+            String output = (item.getOutput() == null ? item.getInput() : item.getOutput()).getPath();
+            boolean confirm = MessageDialog.openConfirm(shell,
                     "Sign Successfully!",
                     String.format(
                             "Sign successfully! The output package save to %s, would you like to explorer?",
-                            page0.getDestPackage()));
+                            output));
             if (confirm) {
-                Explorer e = new Explorer(page0.getDestPackage());
+                Explorer e = new Explorer(output);
                 ExplorerPlugin.explorer(e.getFolder(), e.getFile());
             }
             page1.saveConf(cfgFile);
         }
         else {
-            MessageDialog.openError(getShell(), "Error", String
-                    .format("Error while sign %s, error : %s", input, msg));
+            MessageDialog.openError(shell, "Error", String
+                    .format("Error while sign %s, error : %s", item.getInput(), result.getError()));
         }
     }
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.pde.signer.wizard;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.core.runtime.jobs.MultiRule;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Shell;
+import org.eclipse.ui.IWorkbenchWindow;
+import org.eclipse.ui.PlatformUI;
+
+import cn.ieclipse.pde.signer.SignerPlugin;
+import cn.ieclipse.pde.signer.util.BatchSigner;
+import cn.ieclipse.pde.signer.util.Signer;
+
+/**
+ * Sign archives in the background. Two jobs touching the same file never run
+ * at the same time, a canceled job stops the archives being signed and skips
+ * the others, and the results are handed to
+ * {@link #signed(Shell, List, boolean)} in the UI thread. The progress of a
+ * single archive is reported by bytes, that of several archives by archive.
+ *
+ * @author Jamling
+ *         
+ */
+public abstract class SignJob extends Job {
+    private final Signer signer;
+    private final List<BatchSigner.Item> items;
+    
+    /**
+     * @param name
+     *            the name shown in the progress view
+     * @param signer
+     *            the key and the options
+     * @param items
+     *            the archives to sign
+     */
+    public SignJob(String name, Signer signer, List<BatchSigner.Item> items) {
+        super(name);
+        this.signer = signer;
+        this.items = items;
+        setUser(true);
+        setRule(getRule(items));
+    }
+    
+    @Override
+    protected IStatus run(final IProgressMonitor monitor) {
+        if (items.size() == 1) {
+            return done(Collections.singletonList(sign(items.get(0), monitor)), monitor);
+        }
+        monitor.beginTask(getName(), items.size());
+        final List<BatchSigner.Result> results;
+        try {
+            // The archives are signed in parallel, each one by a single
+            // thread, see CommonSignWizard.
+            results = new BatchSigner(signer, 0).sign(items, new BatchSigner.Listener() {
+                
+                public void onSigned(BatchSigner.Result result, int done, int total) {
+                    monitor.subTask(String.format("%d/%d %s", done, total, result.getItem().getInput().getName()));
+                    monitor.worked(1);
+                }
+                
+                public boolean isCanceled() {
+                    return monitor.isCanceled();
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Status.CANCEL_STATUS;
+        } catch (RuntimeException e) {
+            return new Status(IStatus.ERROR, SignerPlugin.PLUGIN_ID, "Error while sign", e);
+        } finally {
+            monitor.done();
+        }
+        return done(results, monitor);
+    }
+    
+    private BatchSigner.Result sign(BatchSigner.Item item, final IProgressMonitor monitor) {
+        final String name = item.getInput().getName();
+        // The monitor counts kilobytes, each byte is digested and copied once.
+        monitor.beginTask(getName(), (int) Math.min(Integer.MAX_VALUE, item.getInput().length() / 512));
+        long start = System.currentTimeMillis();
+        Exception error = null;
+        try {
+            signer.sign(item.getInput(), item.getOutput(), new Signer.Progress() {
+                private long worked;
+                
+                public void begin(Signer.Phase phase, long total) {
+                    monitor.subTask(String.format("%s %s", getLabel(phase), name));
+                }
+                
+                public synchronized void update(long digested, long written) {
+                    long kb = (digested + written) >> 10;
+                    if (kb > worked) {
+                        monitor.worked((int) (kb - worked));
+                        worked = kb;
+                    }
+                }
+                
+                public boolean isCanceled() {
+                    return monitor.isCanceled();
+                }
+            });
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            monitor.done();
+        }
+        return new BatchSigner.Result(item, error, System.currentTimeMillis() - start);
+    }
+    
+    private IStatus done(final List<BatchSigner.Result> results, IProgressMonitor monitor) {
+        final boolean canceled = monitor.isCanceled();
+        Display.getDefault().asyncExec(new Runnable() {
+            
+            public void run() {
+                signed(getShell(), results, canceled);
+            }
+        });
+        return canceled ? Status.CANCEL_STATUS : Status.OK_STATUS;
+    }
+    
+    /**
+     * Tell the user how it went, called in the UI thread once the job is done.
+     *
+     * @param shell
+     *            the shell of the active workbench window, or null
+     * @param results
+     *            the result of each item, in the order of the items
+     * @param canceled
+     *            whether the job was canceled, the archives stopped or skipped
+     *            are the canceled results
+     */
+    protected abstract void signed(Shell shell, List<BatchSigner.Result> results, boolean canceled);
+    
+    private static String getLabel(Signer.Phase phase) {
+        switch (phase) {
+            case DIGEST:
+                return "Digesting";
+            case COPY:
+                return "Copying";
+            default:
+                return "Signing";
+        }
+    }
+    
+    private static Shell getShell() {
+        IWorkbenchWindow window = PlatformUI.getWorkbench().getActiveWorkbenchWindow();
+        return window == null ? null : window.getShell();
+    }
+    
+    private static ISchedulingRule getRule(List<BatchSigner.Item> items) {
+        List<ISchedulingRule> rules = new ArrayList<ISchedulingRule>();
+        for (BatchSigner.Item item : items) {
+            rules.add(new FileRule(item.getInput()));
+            if (item.getOutput() != null) {
+                rules.add(new FileRule(item.getOutput()));
+            }
+        }
+        return MultiRule.combine(rules.toArray(new ISchedulingRule[rules.size()]));
+    }
+    
+    /**
+     * Conflicts with the rules of the same file.
+     */
+    private static final class FileRule implements ISchedulingRule {
+        private final File file;
+        
+        FileRule(File file) {
+            File f;
+            try {
+                f = file.getCanonicalFile();
+            } catch (IOException e) {
+                f = file.getAbsoluteFile();
+            }
+            this.file = f;
+        }
+        
+        public boolean contains(ISchedulingRule rule) {
+            return isConflicting(rule);
+        }
+        
+        public boolean isConflicting(ISchedulingRule rule) {
+            return rule instanceof FileRule && ((FileRule) rule).file.equals(file);
+        }
+    }
+}
@@ -17,19 +17,25 @@ package cn.ieclipse.pde.signer.wizard;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.List;
 
-import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.swt.widgets.Shell;
+
+import cn.ieclipse.pde.signer.util.BatchSigner;
 
 /**
  * Sign update site project. All jars under features and plugins directory will
  * to signed.
- * 
+ *
  * @author Jamling
  *         
  */
 public class SignPluginWizard extends CommonSignWizard {
     
+    private static final int MAX_FAILURES_SHOWN = 20;
+    
     protected SignPluginPage page0;
     
     public SignPluginWizard() {
@@ -48,37 +54,53 @@ public class SignPluginWizard extends CommonSignWizard {
     }
     
     @Override
-    protected void sign(IProgressMonitor monitor) {
-        String input = null;
-        String msg = null;
+    protected List<BatchSigner.Item> getItems() {
         File f = new File(page0.getSourcePackage());
-        File[] features = new File(f, "features").listFiles(jarFilter);
-        File[] plugins = new File(f, "plugins").listFiles(jarFilter);
-        if (features != null) {
-            for (File file : features) {
-                input = file.getAbsolutePath();
-                msg = pcbSign(input, null, "ECLIPSE_");
-                if (msg != null) {
-                    break;
-                }
-            }
-        }
-        if (plugins != null) {
-            for (File file : plugins) {
-                input = file.getAbsolutePath();
-                msg = pcbSign(input, null, "ECLIPSE_");
-                if (msg != null) {
-                    break;
-                }
+        List<BatchSigner.Item> items = new ArrayList<BatchSigner.Item>();
+        addJars(items, new File(f, "features"));
+        addJars(items, new File(f, "plugins"));
+        return items;
+    }
+    
+    @Override
+    protected String getCertName() {
+        return "ECLIPSE_";
+    }
+    
+    @Override
+    protected void signed(Shell shell, List<BatchSigner.Result> results) {
+        List<BatchSigner.Result> failures = new ArrayList<BatchSigner.Result>();
+        for (BatchSigner.Result result : results) {
+            if (!result.isSuccess()) {
+                failures.add(result);
             }
         }
-        if (msg == null) {
-            MessageDialog.openInformation(getShell(), "Sign Successfully!",
+        if (failures.isEmpty()) {
+            MessageDialog.openInformation(shell, "Sign Successfully!",
                     "Sign successfully! The output signed package(s) have been replace the unsigned package(s)");
             page1.saveConf(cfgFile);
         }
         else {
-            MessageDialog.openError(getShell(), "Error", String.format("Error while sign %s, error : %s", input, msg));
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%d of %d package(s) failed to sign:\n", failures.size(), results.size()));
+            for (int i = 0; i < failures.size(); i++) {
+                if (i == MAX_FAILURES_SHOWN) {
+                    sb.append(String.format("\n... and %d more", failures.size() - i));
+                    break;
+                }
+                BatchSigner.Result result = failures.get(i);
+                sb.append(String.format("\n%s : %s", result.getItem().getInput().getName(), result.getError()));
+            }
+            MessageDialog.openError(shell, "Error", sb.toString());
+        }
+    }
+    
+    private void addJars(List<BatchSigner.Item> items, File dir) {
+        File[] jars = dir.listFiles(jarFilter);
+        if (jars != null) {
+            for (File file : jars) {
+                items.add(new BatchSigner.Item(file.getAbsoluteFile(), null));
+            }
         }
     }
     